@@ -0,0 +1,120 @@
+package com.karlhammar.xdpservices.benchmark;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import com.karlhammar.xdpservices.PropertyOverrides;
+import com.karlhammar.xdpservices.index.Indexer;
+import com.karlhammar.xdpservices.index.IndexingJob;
+
+/**
+ * A synthetic ODP corpus of a given size and the Lucene and Semantic Vectors indexes built over it,
+ * kept under build/jmh-fixtures/&lt;size&gt;/ (or the directory given by -Dxdpservices.benchmark.dir)
+ * and reused across benchmark runs. Preparing a fixture points the index and search configuration
+ * at it through system property overrides, so it must happen before any of the index or search
+ * singletons are first used in the JVM.
+ */
+public class BenchmarkFixture {
+
+	private static final long CORPUS_SEED = 20161017L;
+	private static final String COMPLETE_MARKER = "fixture.complete";
+
+	private final Path fixtureDirectory;
+	private final Path odpDirectory;
+	private final Path csvFile;
+
+	private BenchmarkFixture(int corpusSize) {
+		Path baseDirectory = Paths.get(System.getProperty("xdpservices.benchmark.dir", "build/jmh-fixtures"));
+		this.fixtureDirectory = baseDirectory.resolve(Integer.toString(corpusSize)).toAbsolutePath();
+		this.odpDirectory = fixtureDirectory.resolve("odps");
+		this.csvFile = fixtureDirectory.resolve("ODPs.csv");
+	}
+
+	/**
+	 * Configure this JVM to use the fixture for the given corpus size, generating and indexing the
+	 * corpus first if no complete fixture exists yet.
+	 * @param corpusSize Number of synthetic ODPs.
+	 * @return The prepared fixture.
+	 * @throws IOException
+	 */
+	public static BenchmarkFixture prepare(int corpusSize) throws IOException {
+		BenchmarkFixture fixture = new BenchmarkFixture(corpusSize);
+		fixture.configure();
+		if (!Files.exists(fixture.fixtureDirectory.resolve(COMPLETE_MARKER))) {
+			new SyntheticOdpCorpus(CORPUS_SEED).generate(fixture.odpDirectory, fixture.csvFile, corpusSize);
+			IndexingJob job = awaitIndexingJob(Indexer.INSTANCE.submitIndexingJob(false));
+			if (job.getState() != IndexingJob.State.COMPLETED) {
+				throw new IOException(String.format("Unable to build benchmark fixture: %s", job.getMessage()));
+			}
+			Files.createFile(fixture.fixtureDirectory.resolve(COMPLETE_MARKER));
+		}
+		return fixture;
+	}
+
+	/**
+	 * Generate the corpus of a fixture without indexing it, e.g., for indexing benchmarks.
+	 * @param corpusSize Number of synthetic ODPs.
+	 * @return The configured fixture.
+	 * @throws IOException
+	 */
+	public static BenchmarkFixture generate(int corpusSize) throws IOException {
+		BenchmarkFixture fixture = new BenchmarkFixture(corpusSize);
+		fixture.configure();
+		if (!Files.exists(fixture.csvFile)) {
+			new SyntheticOdpCorpus(CORPUS_SEED).generate(fixture.odpDirectory, fixture.csvFile, corpusSize);
+		}
+		return fixture;
+	}
+
+	/**
+	 * Wait for a submitted indexing job to finish.
+	 * @param job Submitted job.
+	 * @return The finished job.
+	 * @throws IOException If the job could not be submitted, or waiting was interrupted.
+	 */
+	static IndexingJob awaitIndexingJob(IndexingJob job) throws IOException {
+		if (job == null) {
+			throw new IOException("Another indexing job is already running.");
+		}
+		try {
+			while (!job.isFinished()) {
+				Thread.sleep(100);
+			}
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for indexing job.", e);
+		}
+		return job;
+	}
+
+	private void configure() throws IOException {
+		Files.createDirectories(fixtureDirectory.resolve("lucene"));
+		Files.createDirectories(fixtureDirectory.resolve("vectors"));
+		// Paths are concatenated with file names by the indexer, hence the trailing separators
+		setOverride("luceneIndexPath", String.format("%s/", fixtureDirectory.resolve("lucene")));
+		setOverride("semanticVectorsPath", String.format("%s/", fixtureDirectory.resolve("vectors")));
+		setOverride("odpRepositoryPath", String.format("%s/", odpDirectory));
+		setOverride("odpCsvPath", csvFile.toString());
+		setOverride("synonymTablePath", fixtureDirectory.resolve("synonyms.tsv").toString());
+		setOverride("odpMetadataPath", fixtureDirectory.resolve("odpMetadata.bin").toString());
+	}
+
+	private static void setOverride(String key, String value) {
+		System.setProperty(PropertyOverrides.SYSTEM_PROPERTY_PREFIX + key, value);
+	}
+
+	public Path getFixtureDirectory() {
+		return fixtureDirectory;
+	}
+
+	public Path getOdpDirectory() {
+		return odpDirectory;
+	}
+
+	public Path getCsvFile() {
+		return csvFile;
+	}
+}
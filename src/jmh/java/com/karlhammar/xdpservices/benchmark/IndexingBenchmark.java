@@ -0,0 +1,79 @@
+package com.karlhammar.xdpservices.benchmark;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.Map;
+
+import com.karlhammar.xdpservices.index.Indexer;
+import com.karlhammar.xdpservices.index.IndexingJob;
+
+/**
+ * Runs the full indexing pipeline (CSV, Lucene, Semantic Vectors) over a synthetic ODP corpus and
+ * reports files/sec and documents/sec of the Lucene phase, Semantic Vectors training time, and peak
+ * heap use. Indexing is a single long-running job rather than a microbenchmark, so this is a plain
+ * harness rather than a JMH benchmark; run it in a fresh JVM per corpus size, e.g., with
+ * "gradle indexingBenchmark -PcorpusSize=10000".
+ *
+ * Usage: IndexingBenchmark [corpusSize] [runs]
+ */
+public class IndexingBenchmark {
+
+	public static void main(String[] args) throws IOException {
+		int corpusSize = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+		int runs = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+
+		BenchmarkFixture fixture = BenchmarkFixture.generate(corpusSize);
+		System.out.println(String.format("Indexing %d synthetic ODPs from %s, %d runs.", corpusSize, fixture.getOdpDirectory(), runs));
+
+		for (int run=1; run<=runs; run++) {
+			System.gc();
+			resetPeakHeapUsage();
+			IndexingJob job = BenchmarkFixture.awaitIndexingJob(Indexer.INSTANCE.submitIndexingJob(false));
+			if (job.getState() != IndexingJob.State.COMPLETED) {
+				throw new IOException(String.format("Indexing failed: %s", job.getMessage()));
+			}
+
+			Map<IndexingJob.Phase,Double> phaseSeconds = job.getPhaseSeconds();
+			double csvSeconds = getSeconds(phaseSeconds, IndexingJob.Phase.CSV);
+			double luceneSeconds = getSeconds(phaseSeconds, IndexingJob.Phase.LUCENE);
+			double vectorsSeconds = getSeconds(phaseSeconds, IndexingJob.Phase.SEMANTIC_VECTORS);
+			System.out.println(String.format("Run %d: CSV %.2f s; Lucene %.2f s (%.1f files/s, %.1f documents/s, %d/%d files indexed); "
+					+ "Semantic Vectors training %.2f s; total %.2f s; peak heap %.1f MB.",
+					run, csvSeconds, luceneSeconds,
+					job.getFilesFound() / luceneSeconds, job.getDocumentsWritten() / luceneSeconds,
+					job.getDocumentsWritten(), job.getFilesFound(),
+					vectorsSeconds, csvSeconds + luceneSeconds + vectorsSeconds,
+					getPeakHeapUsage() / (1024.0 * 1024.0)));
+		}
+		System.exit(0);
+	}
+
+	private static double getSeconds(Map<IndexingJob.Phase,Double> phaseSeconds, IndexingJob.Phase phase) {
+		Double seconds = phaseSeconds.get(phase);
+		return seconds == null ? 0.0 : seconds;
+	}
+
+	private static void resetPeakHeapUsage() {
+		for (MemoryPoolMXBean pool: ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP) {
+				pool.resetPeakUsage();
+			}
+		}
+	}
+
+	/**
+	 * @return Sum of the peak usage of all heap memory pools since the last reset; an upper bound
+	 * on peak heap use, as the pools need not peak at the same time.
+	 */
+	private static long getPeakHeapUsage() {
+		long peakHeapUsage = 0;
+		for (MemoryPoolMXBean pool: ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP) {
+				peakHeapUsage += pool.getPeakUsage().getUsed();
+			}
+		}
+		return peakHeapUsage;
+	}
+}
@@ -0,0 +1,117 @@
+package com.karlhammar.xdpservices.benchmark;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.csv.CSVRecord;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.karlhammar.xdpservices.data.CodpDetails;
+import com.karlhammar.xdpservices.data.OdpSearchResult;
+import com.karlhammar.xdpservices.retrieve.MetadataFetcher;
+import com.karlhammar.xdpservices.retrieve.OdpFetcher;
+import com.karlhammar.xdpservices.search.CompositeSearch;
+
+/**
+ * Throughput and latency distribution (sample mode reports p50 to p99.99) of the search and
+ * retrieval services over fixture indexes of 100 to 100k synthetic ODPs. Each corpus size runs in
+ * its own forked JVM, since the services are configured once per JVM.
+ *
+ * Run with "gradle jmh"; pass e.g. -PjmhArgs="-p corpusSize=1000 OdpServicesBenchmark.runSearch"
+ * to select sizes and benchmarks.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class OdpServicesBenchmark {
+
+	@Param({"100", "1000", "10000", "100000"})
+	public int corpusSize;
+
+	private List<String> queries;
+	private List<String> odpIris;
+	private List<String> categories;
+	private final AtomicInteger counter = new AtomicInteger();
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		BenchmarkFixture fixture = BenchmarkFixture.prepare(corpusSize);
+
+		// Competency questions of the bundled catalogue are the typical queries
+		queries = new ArrayList<String>();
+		for (CSVRecord record: new SyntheticOdpCorpus(0).getBundledRecords()) {
+			String cqs = record.get("CoversRequirement");
+			if (cqs != null) {
+				for (String cq: cqs.split("[\n\r]")) {
+					if (!cq.trim().isEmpty()) {
+						queries.add(cq.trim());
+					}
+				}
+			}
+		}
+
+		odpIris = new ArrayList<String>();
+		for (CodpDetails odp: MetadataFetcher.INSTANCE.getOdpsByCategory("Any")) {
+			odpIris.add(odp.getIri());
+		}
+		categories = new ArrayList<String>();
+		for (String category: MetadataFetcher.INSTANCE.getOdpCategories()) {
+			categories.add(category);
+		}
+		if (odpIris.isEmpty() || queries.isEmpty()) {
+			throw new IOException(String.format("Benchmark fixture at %s is empty.", fixture.getFixtureDirectory()));
+		}
+	}
+
+	private <T> T next(List<T> values) {
+		return values.get((counter.getAndIncrement() & Integer.MAX_VALUE) % values.size());
+	}
+
+	@Benchmark
+	public OdpSearchResult[] runSearch() {
+		return CompositeSearch.INSTANCE.runSearch(next(queries), null);
+	}
+
+	@Benchmark
+	public OdpSearchResult[] runSearchUncached() {
+		CompositeSearch.INSTANCE.invalidateResultCache();
+		return CompositeSearch.INSTANCE.runSearch(next(queries), null);
+	}
+
+	@Benchmark
+	public CodpDetails getOdpDetails() {
+		return MetadataFetcher.INSTANCE.getOdpDetails(next(odpIris));
+	}
+
+	@Benchmark
+	public CodpDetails[] getOdpsByCategory() throws IOException {
+		return MetadataFetcher.INSTANCE.getOdpsByCategory(next(categories));
+	}
+
+	@Benchmark
+	public String[] getOdpCategories() throws IOException {
+		return MetadataFetcher.INSTANCE.getOdpCategories();
+	}
+
+	@Benchmark
+	public String getOdpBuildingBlockTurtle() throws Exception {
+		return OdpFetcher.getOdpBuildingBlockTurtle(next(odpIris));
+	}
+}
@@ -0,0 +1,203 @@
+package com.karlhammar.xdpservices.benchmark;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.Set;
+
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVPrinter;
+import org.apache.commons.csv.CSVRecord;
+
+import com.karlhammar.xdpservices.index.Indexer;
+
+/**
+ * Generates a reproducible corpus of synthetic ODP building blocks (Turtle files) together with a
+ * matching ODP CSV catalogue. The catalogue repeats the ODPs of the bundled ODPs.csv and adds one
+ * row per synthetic ODP, borrowing intents, domains, competency questions and scenarios from the
+ * bundled rows; entity labels are drawn from the vocabulary of the bundled catalogue, so that
+ * realistic queries hit the synthetic ODPs. Like published ODPs, the building blocks also carry
+ * their intent, competency questions, scenarios, consequences and domain as CPAnnotationSchema
+ * annotations, and their classes and properties have labels and, for some, comments.
+ *
+ * Can be run on its own to write a corpus: SyntheticOdpCorpus &lt;odpDirectory&gt; &lt;csvFile&gt; &lt;size&gt;
+ */
+public class SyntheticOdpCorpus {
+
+	public static final String SYNTHETIC_NAMESPACE = "http://example.org/xdpservices/synthetic/";
+	private static final String CPANNOTATIONSCHEMA = "http://www.ontologydesignpatterns.org/schemas/cpannotationschema.owl#";
+	private static final String CPAS_EXT = "http://xd-protege.com/schemas/cpas-ext.owl#";
+
+	static final String[] CSV_HEADER = {"OWLBuildingBlock", "Name", "GraphicallyRepresentedBy", "HasIntent",
+			"PatternDomain", "CoversRequirement", "ContentODPDescription", "HasConsequence", "Scenario"};
+	static final CSVFormat CSV_FORMAT = CSVFormat.EXCEL.withDelimiter(';').withNullString("");
+
+	private final List<CSVRecord> bundledRecords;
+	private final List<String> vocabulary;
+	private final long seed;
+
+	/**
+	 * @param seed Random seed; the same seed and size always give the same corpus.
+	 * @throws IOException If the bundled ODP catalogue cannot be read.
+	 */
+	public SyntheticOdpCorpus(long seed) throws IOException {
+		this.seed = seed;
+		this.bundledRecords = new ArrayList<CSVRecord>();
+		Set<String> words = new LinkedHashSet<String>();
+		try (Reader reader = new InputStreamReader(Indexer.class.getResourceAsStream("ODPs.csv"), StandardCharsets.UTF_8)) {
+			for (CSVRecord record: CSV_FORMAT.withHeader(CSV_HEADER).withSkipHeaderRecord(true).parse(reader)) {
+				bundledRecords.add(record);
+				for (String column: new String[] {"HasIntent", "CoversRequirement", "ContentODPDescription", "Scenario"}) {
+					String text = record.get(column);
+					if (text != null) {
+						for (String word: text.toLowerCase(Locale.ENGLISH).split("[^a-z]+")) {
+							if (word.length() > 3) {
+								words.add(word);
+							}
+						}
+					}
+				}
+			}
+		}
+		this.vocabulary = new ArrayList<String>(words);
+	}
+
+	/**
+	 * @return The ODP catalogue rows bundled with the application.
+	 */
+	public List<CSVRecord> getBundledRecords() {
+		return bundledRecords;
+	}
+
+	/**
+	 * Writes the synthetic ODP files and the catalogue.
+	 * @param odpDirectory Directory to write ODP files to (created if needed).
+	 * @param csvFile Catalogue file to write.
+	 * @param size Number of synthetic ODPs.
+	 * @throws IOException
+	 */
+	public void generate(Path odpDirectory, Path csvFile, int size) throws IOException {
+		Files.createDirectories(odpDirectory);
+		Random random = new Random(seed);
+		try (Writer csvWriter = Files.newBufferedWriter(csvFile, StandardCharsets.UTF_8);
+				CSVPrinter csvPrinter = new CSVPrinter(csvWriter, CSV_FORMAT.withHeader(CSV_HEADER))) {
+			for (CSVRecord record: bundledRecords) {
+				csvPrinter.printRecord(record);
+			}
+			for (int i=0; i<size; i++) {
+				String odpIri = String.format("%sPattern%d.owl", SYNTHETIC_NAMESPACE, i);
+				String odpName = String.format("%s Pattern %d", capitalize(randomWord(random)), i);
+				CSVRecord template = bundledRecords.get(i % bundledRecords.size());
+				try (Writer odpWriter = Files.newBufferedWriter(odpDirectory.resolve(String.format("Pattern%d.ttl", i)), StandardCharsets.UTF_8)) {
+					writeOdp(odpWriter, odpIri, odpName, template, random);
+				}
+				csvPrinter.printRecord(odpIri, odpName, null, template.get("HasIntent"), template.get("PatternDomain"),
+						template.get("CoversRequirement"), template.get("ContentODPDescription"),
+						template.get("HasConsequence"), template.get("Scenario"));
+			}
+		}
+	}
+
+	/**
+	 * Writes one ODP: a handful to a few dozen labelled classes and object properties, with property
+	 * domains and ranges and existential restrictions, so that the ODPs vary in size and strategy.
+	 */
+	void writeOdp(Writer writer, String odpIri, String odpName, CSVRecord template, Random random) throws IOException {
+		writer.write("@prefix owl: <http://www.w3.org/2002/07/owl#> .\n");
+		writer.write("@prefix rdfs: <http://www.w3.org/2000/01/rdf-schema#> .\n");
+		writer.write(String.format("@prefix cpas: <%s> .\n", CPANNOTATIONSCHEMA));
+		writer.write(String.format("@prefix cpasext: <%s> .\n", CPAS_EXT));
+		writer.write(String.format("@prefix : <%s#> .\n\n", odpIri));
+		writer.write("cpas:hasIntent a owl:AnnotationProperty .\ncpas:coversRequirements a owl:AnnotationProperty .\n");
+		writer.write("cpas:scenarios a owl:AnnotationProperty .\ncpas:hasConsequences a owl:AnnotationProperty .\n");
+		writer.write("cpasext:category a owl:AnnotationProperty .\ncpasext:solutionDescription a owl:AnnotationProperty .\n\n");
+		
+		// ODP-level annotations, as in the CPAnnotationSchema
+		writer.write(String.format("<%s> a owl:Ontology ;\n\trdfs:label %s", odpIri, literal(odpName)));
+		writeAnnotation(writer, "cpas:hasIntent", template.get("HasIntent"));
+		writeAnnotation(writer, "cpas:coversRequirements", template.get("CoversRequirement"));
+		writeAnnotation(writer, "cpas:hasConsequences", template.get("HasConsequence"));
+		writeAnnotation(writer, "cpasext:solutionDescription", template.get("ContentODPDescription"));
+		if (template.get("Scenario") != null) {
+			for (String scenario: template.get("Scenario").split("[\n\r]")) {
+				writeAnnotation(writer, "cpas:scenarios", scenario);
+			}
+		}
+		if (template.get("PatternDomain") != null) {
+			for (String domain: template.get("PatternDomain").split("[\n\r]")) {
+				writeAnnotation(writer, "cpasext:category", domain);
+			}
+		}
+		writer.write(" .\n\n");
+
+		int classCount = 2 + random.nextInt(random.nextBoolean() ? 8 : 40);
+		int propertyCount = 1 + random.nextInt(classCount);
+		List<String> classNames = new ArrayList<String>();
+		for (int i=0; i<classCount; i++) {
+			String label = String.format("%s %s", randomWord(random), randomWord(random));
+			String localName = String.format("%s%d", toCamelCase(label, true), i);
+			classNames.add(localName);
+			writer.write(String.format(":%s a owl:Class ;\n\trdfs:label %s", localName, literal(label)));
+			if (random.nextInt(3) == 0) {
+				writeAnnotation(writer, "rdfs:comment", String.format("A %s that is related to %s.", label, randomWord(random)));
+			}
+			writer.write(" .\n");
+		}
+		for (int i=0; i<propertyCount; i++) {
+			String label = String.format("has %s", randomWord(random));
+			String localName = String.format("%s%d", toCamelCase(label, false), i);
+			String domain = classNames.get(random.nextInt(classCount));
+			String range = classNames.get(random.nextInt(classCount));
+			writer.write(String.format(":%s a owl:ObjectProperty ;\n\trdfs:label %s ;\n\trdfs:domain :%s ;\n\trdfs:range :%s .\n",
+					localName, literal(label), domain, range));
+			if (random.nextBoolean()) {
+				writer.write(String.format(":%s rdfs:subClassOf [ a owl:Restriction ; owl:onProperty :%s ; owl:someValuesFrom :%s ] .\n",
+						domain, localName, range));
+			}
+		}
+	}
+
+	private static void writeAnnotation(Writer writer, String property, String value) throws IOException {
+		if (value != null && !value.trim().isEmpty()) {
+			writer.write(String.format(" ;\n\t%s %s", property, literal(value.trim())));
+		}
+	}
+
+	String randomWord(Random random) {
+		return vocabulary.get(random.nextInt(vocabulary.size()));
+	}
+
+	static String literal(String value) {
+		return String.format("\"%s\"@en", value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\r", " ").replace("\n", " "));
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length != 3) {
+			System.err.println("Usage: SyntheticOdpCorpus <odpDirectory> <csvFile> <size>");
+			System.exit(1);
+		}
+		new SyntheticOdpCorpus(System.currentTimeMillis()).generate(Paths.get(args[0]), Paths.get(args[1]), Integer.parseInt(args[2]));
+	}
+
+	private static String capitalize(String word) {
+		return word.substring(0, 1).toUpperCase(Locale.ENGLISH) + word.substring(1);
+	}
+
+	private static String toCamelCase(String label, boolean upperFirst) {
+		StringBuilder camelCase = new StringBuilder();
+		for (String word: label.split(" ")) {
+			camelCase.append(camelCase.length() == 0 && !upperFirst ? word : capitalize(word));
+		}
+		return camelCase.toString();
+	}
+}
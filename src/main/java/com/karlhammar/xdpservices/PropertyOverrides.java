@@ -0,0 +1,32 @@
+package com.karlhammar.xdpservices;
+
+import java.util.Properties;
+
+/**
+ * Lets bundled configuration (indexing.properties, search.properties) be overridden per JVM, e.g.
+ * to point benchmarks or a test deployment at other index and repository paths: a system property 
+ * "xdpservices.&lt;key&gt;" (as in -Dxdpservices.luceneIndexPath=/tmp/index/) replaces the value of 
+ * &lt;key&gt;.
+ */
+public final class PropertyOverrides {
+
+	public static final String SYSTEM_PROPERTY_PREFIX = "xdpservices.";
+
+	private PropertyOverrides() {
+	}
+
+	/**
+	 * Apply system property overrides to loaded configuration properties.
+	 * @param properties Properties loaded from a bundled properties file; modified in place.
+	 * @return The same properties object.
+	 */
+	public static Properties apply(Properties properties) {
+		Properties systemProperties = System.getProperties();
+		for (String name: systemProperties.stringPropertyNames()) {
+			if (name.startsWith(SYSTEM_PROPERTY_PREFIX)) {
+				properties.setProperty(name.substring(SYSTEM_PROPERTY_PREFIX.length()), systemProperties.getProperty(name));
+			}
+		}
+		return properties;
+	}
+}
@@ -0,0 +1,37 @@
+package com.karlhammar.xdpservices;
+
+import java.util.Map;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.boot.actuate.health.HealthIndicator;
+import org.springframework.stereotype.Component;
+
+/**
+ * Reports whether this instance is ready to take traffic, as part of the actuator /health endpoint:
+ * out of service while {@link ServiceWarmup} is still loading resources, down if no Lucene index
+ * could be opened, and up otherwise. The availability of each resource is included as details.
+ */
+@Component
+public class ReadinessHealthIndicator implements HealthIndicator {
+
+	private final ServiceWarmup serviceWarmup;
+
+	@Autowired
+	public ReadinessHealthIndicator(ServiceWarmup serviceWarmup) {
+		this.serviceWarmup = serviceWarmup;
+	}
+
+	@Override
+	public Health health() {
+		if (!serviceWarmup.isWarmedUp()) {
+			return Health.outOfService().withDetail("warmup", "in progress").build();
+		}
+		Map<String,Boolean> resourceAvailability = serviceWarmup.getResourceAvailability();
+		Health.Builder health = resourceAvailability.get("lucene") ? Health.up() : Health.down();
+		for (Map.Entry<String,Boolean> resource: resourceAvailability.entrySet()) {
+			health.withDetail(resource.getKey(), resource.getValue() ? "available" : "unavailable");
+		}
+		return health.build();
+	}
+}
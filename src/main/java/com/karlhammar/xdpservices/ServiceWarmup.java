@@ -0,0 +1,179 @@
+package com.karlhammar.xdpservices;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.karlhammar.xdpservices.index.LuceneSearcherManager;
+import com.karlhammar.xdpservices.index.OdpMetadataStore;
+import com.karlhammar.xdpservices.index.SynonymLookup;
+import com.karlhammar.xdpservices.retrieve.MetadataFetcher;
+import com.karlhammar.xdpservices.retrieve.OdpFetcher;
+import com.karlhammar.xdpservices.search.CompositeSearch;
+import com.karlhammar.xdpservices.search.SemanticVectorIndex;
+
+/**
+ * Initializes the search and retrieval singletons when the application starts rather than on the
+ * first request that touches them. The expensive resources (Lucene searcher, Semantic Vectors
+ * stores, WordNet and the synonym table, ODP metadata store) are loaded in parallel in the
+ * background, after which the services built on them are initialized, each through its idempotent
+ * open or init method, which reports whether it is available. Startup is not blocked;
+ * {@link ReadinessHealthIndicator} reports the instance as out of service until warm-up completes.
+ * Resources that could not be loaded (e.g., no index built yet) are retried periodically, every
+ * xdpservices.warmupRetrySeconds seconds.
+ */
+@Component
+public class ServiceWarmup implements InitializingBean, DisposableBean {
+
+	private static final Log log = LogFactory.getLog(ServiceWarmup.class);
+
+	private final long retrySeconds;
+	private final ExecutorService warmupExecutor;
+	private final ScheduledExecutorService retryExecutor;
+	private volatile boolean warmedUp;
+
+	public ServiceWarmup(@Value("${xdpservices.warmupRetrySeconds:60}") long retrySeconds) {
+		this.retrySeconds = retrySeconds;
+		this.warmupExecutor = Executors.newCachedThreadPool(new ThreadFactoryBuilder().setNameFormat("service-warmup-%d").setDaemon(true).build());
+		this.retryExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setNameFormat("service-warmup-retry").setDaemon(true).build());
+	}
+
+	@Override
+	public void afterPropertiesSet() {
+		warmupExecutor.submit(new Runnable() {
+			@Override
+			public void run() {
+				warmUp();
+			}
+		});
+	}
+
+	@Override
+	public void destroy() {
+		warmupExecutor.shutdownNow();
+		retryExecutor.shutdownNow();
+	}
+
+	/**
+	 * @return True once all services have been initialized (whether or not all resources loaded).
+	 */
+	public boolean isWarmedUp() {
+		return warmedUp;
+	}
+
+	/**
+	 * @return Availability of each resource, by name, without retrying unavailable ones.
+	 */
+	public Map<String,Boolean> getResourceAvailability() {
+		Map<String,Boolean> availability = new LinkedHashMap<String,Boolean>();
+		if (!warmedUp) {
+			return availability;
+		}
+		availability.put("lucene", LuceneSearcherManager.INSTANCE.isAvailable());
+		availability.put("semanticVectors", SemanticVectorIndex.INSTANCE.isLoaded());
+		availability.put("wordNet", SynonymLookup.INSTANCE.isWordNetAvailable());
+		availability.put("synonymTable", SynonymLookup.INSTANCE.hasSynonymTable());
+		availability.put("odpMetadata", OdpMetadataStore.INSTANCE.isAvailable());
+		return availability;
+	}
+
+	private void warmUp() {
+		long warmupStartTime = System.nanoTime();
+
+		// The resources do not depend on each other, so they are loaded concurrently; each open is
+		// idempotent and reports whether the resource is available
+		List<Callable<Boolean>> resourceLoaders = new ArrayList<Callable<Boolean>>();
+		resourceLoaders.add(new Callable<Boolean>() {
+			@Override
+			public Boolean call() {
+				return LuceneSearcherManager.INSTANCE.open();
+			}
+		});
+		resourceLoaders.add(new Callable<Boolean>() {
+			@Override
+			public Boolean call() {
+				return SemanticVectorIndex.INSTANCE.open();
+			}
+		});
+		resourceLoaders.add(new Callable<Boolean>() {
+			@Override
+			public Boolean call() {
+				return SynonymLookup.INSTANCE.openWordNet();
+			}
+		});
+		resourceLoaders.add(new Callable<Boolean>() {
+			@Override
+			public Boolean call() {
+				return OdpMetadataStore.INSTANCE.open();
+			}
+		});
+		try {
+			for (Future<Boolean> resourceLoader: warmupExecutor.invokeAll(resourceLoaders)) {
+				try {
+					resourceLoader.get();
+				}
+				catch (ExecutionException e) {
+					log.error(String.format("Unable to warm up resource. Error message: %s", e.getCause().getMessage()));
+				}
+			}
+
+			// Then the services using them
+			Map<String,Boolean> serviceAvailability = new LinkedHashMap<String,Boolean>();
+			serviceAvailability.put("search", CompositeSearch.INSTANCE.init());
+			serviceAvailability.put("buildingBlocks", OdpFetcher.INSTANCE.init());
+			serviceAvailability.put("metadata", MetadataFetcher.INSTANCE.init());
+			log.info(String.format("Services initialized; service availability: %s", serviceAvailability));
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return;
+		}
+		catch (Exception e) {
+			log.error(String.format("Unable to warm up services. Error message: %s", e.getMessage()));
+		}
+		warmedUp = true;
+		log.info(String.format("Services warmed up in %.2f seconds; resource availability: %s",
+				(System.nanoTime() - warmupStartTime) / 1000000000f, getResourceAvailability()));
+
+		retryExecutor.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				retryUnavailableResources();
+			}
+		}, retrySeconds, retrySeconds, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Retry loading resources that are not available. Resources replaced by an indexing job are
+	 * reloaded by the indexer itself, so available resources are left alone.
+	 */
+	private void retryUnavailableResources() {
+		try {
+			if (LuceneSearcherManager.INSTANCE.open()) {
+				SemanticVectorIndex.INSTANCE.open();
+				OdpMetadataStore.INSTANCE.open();
+			}
+			SynonymLookup.INSTANCE.openWordNet();
+		}
+		catch (RuntimeException e) {
+			// Keep the retry schedule alive
+			log.error(String.format("Unable to reload resources. Error message: %s", e.getMessage()));
+		}
+	}
+}
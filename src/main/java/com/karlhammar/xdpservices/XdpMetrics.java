@@ -0,0 +1,16 @@
+package com.karlhammar.xdpservices;
+
+import com.codahale.metrics.MetricRegistry;
+
+/**
+ * The application's metric registry. The search and index singletons are not Spring beans, so they
+ * record their timers, counters and histograms here directly; the registry is also exposed as the
+ * Spring bean that the actuator /metrics endpoint reports on (see {@link XdpServices}).
+ */
+public final class XdpMetrics {
+
+	public static final MetricRegistry REGISTRY = new MetricRegistry();
+
+	private XdpMetrics() {
+	}
+}
@@ -6,6 +6,7 @@ import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.ComponentScan;
 import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
 
+import com.codahale.metrics.MetricRegistry;
 import com.fasterxml.jackson.datatype.guava.GuavaModule;
 
 @ComponentScan
@@ -22,4 +23,9 @@ public class XdpServices {
         builder = builder.modulesToInstall(new GuavaModule());
         return builder;
     }
+    
+    @Bean
+    public MetricRegistry metricRegistry() {
+        return XdpMetrics.REGISTRY;
+    }
 }
\ No newline at end of file
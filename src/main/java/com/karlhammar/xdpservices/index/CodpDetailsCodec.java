@@ -0,0 +1,99 @@
+package com.karlhammar.xdpservices.index;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.karlhammar.xdpservices.data.CodpDetails;
+
+/**
+ * Compact binary encoding of ODP details, for the on-disk ODP record files written during
+ * indexing. Strings are written as a length prefix (-1 for null) followed by UTF-8 bytes; lists as
+ * an element count followed by their strings.
+ */
+final class CodpDetailsCodec {
+
+	private CodpDetailsCodec() {
+	}
+
+	static byte[] encode(CodpDetails odp) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(1024);
+		DataOutputStream out = new DataOutputStream(bytes);
+		writeString(out, odp.getIri());
+		writeString(out, odp.getName());
+		writeString(out, odp.getImageIri().orNull());
+		writeString(out, odp.getIntent().orNull());
+		writeString(out, odp.getDescription().orNull());
+		writeString(out, odp.getConsequences().orNull());
+		writeStrings(out, odp.getDomains());
+		writeStrings(out, odp.getScenarios());
+		writeStrings(out, odp.getCqs());
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	static CodpDetails decode(ByteBuffer in) {
+		String iri = readString(in);
+		String name = readString(in);
+		String imageIri = readString(in);
+		String intent = readString(in);
+		String description = readString(in);
+		String consequences = readString(in);
+		List<String> domains = readStrings(in);
+		List<String> scenarios = readStrings(in);
+		List<String> cqs = readStrings(in);
+		return new CodpDetails(iri, name, imageIri, intent, description, consequences, domains, scenarios, cqs);
+	}
+
+	/**
+	 * Read only the IRI of an encoded record, which is its first field.
+	 */
+	static String decodeIri(ByteBuffer in) {
+		return readString(in);
+	}
+
+	private static void writeString(DataOutputStream out, String value) throws IOException {
+		if (value == null) {
+			out.writeInt(-1);
+		}
+		else {
+			byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+			out.writeInt(utf8.length);
+			out.write(utf8);
+		}
+	}
+
+	private static void writeStrings(DataOutputStream out, List<String> values) throws IOException {
+		if (values == null) {
+			out.writeInt(0);
+			return;
+		}
+		out.writeInt(values.size());
+		for (String value: values) {
+			writeString(out, value);
+		}
+	}
+
+	private static String readString(ByteBuffer in) {
+		int length = in.getInt();
+		if (length < 0) {
+			return null;
+		}
+		byte[] utf8 = new byte[length];
+		in.get(utf8);
+		return new String(utf8, StandardCharsets.UTF_8);
+	}
+
+	private static List<String> readStrings(ByteBuffer in) {
+		int size = in.getInt();
+		List<String> values = new ArrayList<String>(size);
+		for (int i=0; i<size; i++) {
+			values.add(readString(in));
+		}
+		return values;
+	}
+}
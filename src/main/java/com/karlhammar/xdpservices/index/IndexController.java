@@ -2,7 +2,10 @@ package com.karlhammar.xdpservices.index;
 
 import java.io.IOException;
 
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 
 @RestController
@@ -11,4 +14,37 @@ public class IndexController {
     public String rebuildIndex() throws IOException {
     	return Indexer.INSTANCE.buildIndex();
     }
+    
+    @RequestMapping("/index/updateIndex")
+    public String updateIndex() throws IOException {
+    	return Indexer.INSTANCE.updateIndex();
+    }
+    
+    @RequestMapping("/index/rebuildIndexAsync")
+    public ResponseEntity<IndexingJob> rebuildIndexAsync() {
+    	return submitIndexingJob(false);
+    }
+    
+    @RequestMapping("/index/updateIndexAsync")
+    public ResponseEntity<IndexingJob> updateIndexAsync() {
+    	return submitIndexingJob(true);
+    }
+    
+    @RequestMapping("/index/indexingJob")
+    public ResponseEntity<IndexingJob> indexingJob(@RequestParam(value="jobId", required=true) String jobId) {
+    	IndexingJob job = Indexer.INSTANCE.getIndexingJob(jobId);
+    	if (job == null) {
+    		return new ResponseEntity<IndexingJob>(HttpStatus.NOT_FOUND);
+    	}
+    	return new ResponseEntity<IndexingJob>(job, HttpStatus.OK);
+    }
+    
+    // Concurrent indexing jobs are rejected; the job already in progress is returned instead
+    private ResponseEntity<IndexingJob> submitIndexingJob(boolean incremental) {
+    	IndexingJob job = Indexer.INSTANCE.submitIndexingJob(incremental);
+    	if (job == null) {
+    		return new ResponseEntity<IndexingJob>(Indexer.INSTANCE.getCurrentIndexingJob(), HttpStatus.CONFLICT);
+    	}
+    	return new ResponseEntity<IndexingJob>(job, HttpStatus.ACCEPTED);
+    }
 }
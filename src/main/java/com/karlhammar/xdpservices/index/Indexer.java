@@ -1,41 +1,51 @@
 package com.karlhammar.xdpservices.index;
 
 import java.io.File;
-import java.io.FileReader;
 import java.io.IOException;
-import java.io.Reader;
 import java.io.StringReader;
-import java.net.URL;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
-import org.apache.commons.csv.CSVFormat;
-import org.apache.commons.csv.CSVRecord;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.TokenStream;
-import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
-import org.apache.lucene.analysis.standard.StandardAnalyzer;
 import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field;
+import org.apache.lucene.document.FieldType;
 import org.apache.lucene.document.StringField;
 import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.IndexWriterConfig;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.index.IndexWriterConfig.OpenMode;
+import org.apache.lucene.index.MultiFields;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.Bits;
 import org.semanticweb.owlapi.apibinding.OWLManager;
 import org.semanticweb.owlapi.io.FileDocumentSource;
+import org.semanticweb.owlapi.model.AxiomType;
 import org.semanticweb.owlapi.model.IRI;
 import org.semanticweb.owlapi.model.MissingImportHandlingStrategy;
 import org.semanticweb.owlapi.model.OWLAnnotation;
@@ -43,24 +53,31 @@ import org.semanticweb.owlapi.model.OWLClass;
 import org.semanticweb.owlapi.model.OWLDataFactory;
 import org.semanticweb.owlapi.model.OWLDataProperty;
 import org.semanticweb.owlapi.model.OWLEntity;
+import org.semanticweb.owlapi.model.OWLImportsDeclaration;
 import org.semanticweb.owlapi.model.OWLLiteral;
 import org.semanticweb.owlapi.model.OWLObjectProperty;
 import org.semanticweb.owlapi.model.OWLOntology;
 import org.semanticweb.owlapi.model.OWLOntologyCreationException;
 import org.semanticweb.owlapi.model.OWLOntologyLoaderConfiguration;
 import org.semanticweb.owlapi.model.OWLOntologyManager;
+import org.semanticweb.owlapi.model.OWLQuantifiedRestriction;
+import org.semanticweb.owlapi.model.OWLSubClassOfAxiom;
+import org.semanticweb.owlapi.profiles.OWL2DLProfile;
+import org.semanticweb.owlapi.profiles.OWL2ELProfile;
+import org.semanticweb.owlapi.profiles.OWL2QLProfile;
+import org.semanticweb.owlapi.profiles.OWL2RLProfile;
+import org.semanticweb.owlapi.profiles.OWLProfile;
 import org.springframework.util.StringUtils;
 
 import com.google.common.base.CaseFormat;
 import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+import com.karlhammar.xdpservices.PropertyOverrides;
 import com.karlhammar.xdpservices.data.CodpDetails;
-import edu.mit.jwi.Dictionary;
-import edu.mit.jwi.IDictionary;
-import edu.mit.jwi.item.IIndexWord;
-import edu.mit.jwi.item.ISynset;
-import edu.mit.jwi.item.IWord;
-import edu.mit.jwi.item.IWordID;
-import edu.mit.jwi.item.POS;
+import com.karlhammar.xdpservices.search.CompositeSearch;
+import com.karlhammar.xdpservices.search.SemanticVectorIndex;
 import pitt.search.semanticvectors.BuildIndex;
 
 public class Indexer {
@@ -68,11 +85,41 @@ public class Indexer {
 	// Singleton instance.
 	public final static Indexer INSTANCE = new Indexer();
 
+	// Version of the set of indexed fields and their analysis. Bump whenever either changes; 
+	// indexes built with another version cannot be incrementally updated.
+	private static final String INDEX_SCHEMA_VERSION = "6";
+	
+	// Field type of allterms unless storeTermFields is set: indexed with term vectors, from which 
+	// Semantic Vectors training reads document contents, but not stored.
+	private static final FieldType ALLTERMS_FIELD_TYPE = new FieldType(TextField.TYPE_NOT_STORED);
+	static {
+		ALLTERMS_FIELD_TYPE.setStoreTermVectors(true);
+		ALLTERMS_FIELD_TYPE.freeze();
+	}
+	
+	// Stored fields loaded when listing the ODPs in an index.
+	private static final Set<String> IRI_FIELD = Collections.singleton("iri");
+	
+	// ODP size classes, by number of classes and properties, used for search filtering.
+	private static final int SMALL_ODP_MAX_ENTITIES = 10;
+	private static final int MEDIUM_ODP_MAX_ENTITIES = 30;
+	
+	// Namespaces that indicate an ODP is aligned to DOLCE, schema.org, or DBpedia respectively.
+	private static final Map<String,String> MAPPING_NAMESPACES = ImmutableMap.of(
+			"http://www.ontologydesignpatterns.org/ont/dul/", "dolce",
+			"http://www.loa-cnr.it/ontologies/DOLCE", "dolce",
+			"http://schema.org/", "schemaorg",
+			"https://schema.org/", "schemaorg",
+			"http://dbpedia.org/", "dbpedia");
+
 	// Singleton properties.
 	private static Log log;
 	private static Properties searchProperties;
-	private static IndexWriter writer;
-	private static IDictionary wordnetDictionary;
+	
+	// Indexing job bookkeeping; at most one job may be queued or running at any time.
+	private static ExecutorService indexingJobExecutor;
+	private static Map<String,IndexingJob> indexingJobs;
+	private static IndexingJob currentIndexingJob;
 	
 	/**
 	 * Private singleton constructor setting up all the statics that are needed. 
@@ -81,25 +128,25 @@ public class Indexer {
 		// Instantiate logging
 		log = LogFactory.getLog(Indexer.class);
 		
+		// Set up indexing job execution, remembering the most recent jobs for status queries
+		indexingJobExecutor = Executors.newSingleThreadExecutor();
+		indexingJobs = new LinkedHashMap<String,IndexingJob>() {
+			private static final long serialVersionUID = 1L;
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String,IndexingJob> eldest) {
+				return size() > 20;
+			}
+		};
+		
 		// Get indexing configuration
 		try {
 			searchProperties = new Properties();
 			searchProperties.load(Indexer.class.getResourceAsStream("indexing.properties"));
+			PropertyOverrides.apply(searchProperties);
 		} 
 		catch (IOException e) {
 			log.fatal(String.format("Unable to load search properties. Error message: %s", e.getMessage()));
 		}
-		
-		// Load WordNet dictionary 
-		try {
-			String WnDictPath = searchProperties.getProperty("wordNetPath");
-			URL url = new URL("file", null, WnDictPath);
-			wordnetDictionary = new Dictionary(url);
-			wordnetDictionary.open();
-		}
-		catch (IOException ex) {
-			log.error(String.format("Unable to load WordNet. Error message: %s", ex.getMessage()));
-		}
 	}
 
 	
@@ -111,290 +158,277 @@ public class Indexer {
 	 * @throws IOException 
 	 */
 	public String buildIndex() throws IOException {
-		log.info("Initiating index re-build.");
+		return runIndexingJob(false);
+	}
+	
+	/**
+	 * Incrementally updates the Lucene index: only ODP files that have been added or changed since the 
+	 * last indexing run (as per their content hash) are re-parsed and re-indexed, and the documents of 
+	 * deleted files are removed. SemanticVectors are retrained if anything changed. Falls back to a full 
+	 * rebuild if the existing index was built with a different schema version or ODP CSV file.
+	 * 
+	 * @return A user friendly indexing success/failure message string.
+	 * @throws IOException 
+	 */
+	public String updateIndex() throws IOException {
+		return runIndexingJob(true);
+	}
+	
+	/**
+	 * Starts a full rebuild (or incremental update) of the indexes in the background. 
+	 * @param incremental Whether to only update the index for added, changed and deleted ODP files.
+	 * @return The queued job, for polling its progress; or null if another indexing job is already 
+	 * queued or running, in which case this request is rejected.
+	 */
+	public IndexingJob submitIndexingJob(boolean incremental) {
+		final IndexingJob job = claimIndexingJob(incremental);
+		if (job != null) {
+			indexingJobExecutor.submit(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						runIndexingJob(job);
+					}
+					catch (Throwable e) {
+						// Otherwise swallowed by the executor's Future, which no one reads
+						log.error(String.format("Indexing job %s failed. Error message: %s", job.getJobId(), e.getMessage()), e);
+					}
+				}
+			});
+		}
+		return job;
+	}
+	
+	/**
+	 * @param jobId ID of a recently submitted indexing job.
+	 * @return The indexing job, or null if no such job is known.
+	 */
+	public IndexingJob getIndexingJob(String jobId) {
+		synchronized (indexingJobs) {
+			return indexingJobs.get(jobId);
+		}
+	}
+	
+	/**
+	 * @return The indexing job that is queued or running, or null if there is none.
+	 */
+	public IndexingJob getCurrentIndexingJob() {
+		synchronized (indexingJobs) {
+			if (currentIndexingJob != null && !currentIndexingJob.isFinished()) {
+				return currentIndexingJob;
+			}
+			return null;
+		}
+	}
+	
+	/**
+	 * Registers a new indexing job, unless one is already queued or running. This is what keeps
+	 * concurrent index builds from writing to the same index.
+	 */
+	private static IndexingJob claimIndexingJob(boolean incremental) {
+		synchronized (indexingJobs) {
+			if (currentIndexingJob != null && !currentIndexingJob.isFinished()) {
+				return null;
+			}
+			currentIndexingJob = new IndexingJob(incremental);
+			indexingJobs.put(currentIndexingJob.getJobId(), currentIndexingJob);
+			return currentIndexingJob;
+		}
+	}
+	
+	private String runIndexingJob(boolean incremental) throws IOException {
+		IndexingJob job = claimIndexingJob(incremental);
+		if (job == null) {
+			return "Index rebuild already in progress.";
+		}
+		return runIndexingJob(job);
+	}
+	
+	private String runIndexingJob(IndexingJob job) throws IOException {
+		try {
+			String message = buildIndex(job.isIncremental(), job);
+			if (!job.isFinished()) {
+				job.finish(true, message);
+			}
+			return message;
+		}
+		catch (Throwable e) {
+			// Errors too (e.g., OutOfMemoryError), as a job left running blocks all later indexing jobs
+			job.finish(false, String.format("Index rebuild failed: %s", e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName()));
+			throw e;
+		}
+	}
+	
+	private String buildIndex(boolean incremental, IndexingJob job) throws IOException {
+		log.info(incremental ? "Initiating incremental index update." : "Initiating index re-build.");
+		job.startPhase(IndexingJob.Phase.CSV);
 		
+		// Stream the ODP catalogue, keeping only an index of its records in memory
+		long csvStartTime = System.nanoTime();
+		try (OdpCatalogue catalogue = OdpCatalogue.open(searchProperties.getProperty("odpCsvPath", ""))) {
+			long csvEndTime = System.nanoTime();
+			float csvDuration = (csvEndTime - csvStartTime) / 1000000000f;
+			String csvStatus = String.format("ODP catalogue of %d ODPs read from %d CSV file(s) in %.2f seconds.", 
+					catalogue.size(), catalogue.getSourceCount(), csvDuration);
+			log.info(csvStatus);
+			return buildIndex(incremental, job, catalogue, csvStatus);
+		}
+	}
+	
+	private String buildIndex(boolean incremental, IndexingJob job, OdpCatalogue catalogue, String csvStatus) throws IOException {
 		// Indexing configuration
 		String odpRepositoryPath = searchProperties.getProperty("odpRepositoryPath");
 		String vectorBasePath = searchProperties.getProperty("semanticVectorsPath");
 		Path luceneIndexPath = Paths.get(searchProperties.getProperty("luceneIndexPath"));
-		
-		// Map that keeps track of objects parsed from CSV file for later file-based indexing
-		Map<String,CodpDetails> iriToDetailsMap = new HashMap<String,CodpDetails>();
-		
-		// Parse ODP CSV file
-		long csvStartTime = System.nanoTime();
-		URL csvFileUrl = Indexer.class.getResource("ODPs.csv");
-		Reader csvFileReader = new FileReader(csvFileUrl.getPath());
-		Iterable<CSVRecord> records = CSVFormat.EXCEL.withDelimiter(';').withSkipHeaderRecord(true).withNullString("").withHeader("OWLBuildingBlock",
-				"Name",
-				"GraphicallyRepresentedBy",
-				"HasIntent",
-				"PatternDomain",
-				"CoversRequirement",
-				"ContentODPDescription",
-				"HasConsequence",
-				"Scenario").parse(csvFileReader);
-		
-		for (CSVRecord record : records) {
-			// Add mandatory fields
-		    String iri = record.get("OWLBuildingBlock");
-		    String name = record.get("Name");
-		    CodpDetails odpDetails = new CodpDetails(iri,name);
-		    
-		    // Add optional fields
-		    if (record.get("GraphicallyRepresentedBy") != null) {
-		    	odpDetails.setImageIri(record.get("GraphicallyRepresentedBy"));
-		    }
-		    if (record.get("HasIntent") != null) {
-		    	odpDetails.setIntent(record.get("HasIntent"));
-		    }
-		    if (record.get("ContentODPDescription") != null) {
-		    	odpDetails.setDescription(record.get("ContentODPDescription"));
-		    }
-		    if (record.get("HasConsequence") != null) {
-		    	odpDetails.setConsequences(record.get("HasConsequence"));
-		    }
-		    	
-		    // Add list fields (if they exist), splitting as needed
-		    if (record.get("PatternDomain") != null) {
-		    	String[] domains = record.get("PatternDomain").split("[\n\r]");
-		    	for (String domain: domains) {
-		    		odpDetails.getDomains().add(domain);
-		    	}
-		    }
-		    if (record.get("CoversRequirement") != null) {
-		    	String[] cqs = record.get("CoversRequirement").split("[\n\r]");
-		    	for (String cq: cqs) {
-		    		odpDetails.getCqs().add(cq);
-		    	}
-		    }
-		    if (record.get("Scenario") != null) {
-		    	String[] scenarios = record.get("Scenario").split("[\n\r]");
-		    	for (String scenario: scenarios) {
-		    		odpDetails.getScenarios().add(scenario);
-		    	}
-		    }
-		    
-		    // Add generated ODP object to map for later reference
-		    iriToDetailsMap.put(iri, odpDetails);
-		}
-		long csvEndTime = System.nanoTime();
-		float csvDuration = (csvEndTime - csvStartTime) / 1000000000;
-		String csvStatus = String.format("CSV file parsed in %.1f seconds.", csvDuration);
+		String csvHash = catalogue.getHash();
 		
 		// Get filesystem reference to ODP path and do basic sanity checking
 		File odpRepository = new File(odpRepositoryPath);
 		if (!odpRepository.isDirectory()) {
 			log.fatal(String.format("Configured ODP repository path is not a directory: %s", odpRepositoryPath));
+			job.finish(false, "Index rebuild failed.");
 			return "Index rebuild failed.";
 		} 
 		else {
-			// Configure Lucene index
+			job.startPhase(IndexingJob.Phase.LUCENE);
 			long luceneStartTime = System.nanoTime();
 			Directory dir = FSDirectory.open(luceneIndexPath);
-			Analyzer analyzer = new StandardAnalyzer();
-			IndexWriterConfig iwc = new IndexWriterConfig(analyzer);
-			iwc.setOpenMode(OpenMode.CREATE);
-			writer = new IndexWriter(dir, iwc);
-			String[] files = odpRepository.list();
-			for (int i = 0; i < files.length; i++) {
-				File odpFile = new File(odpRepository, files[i]);
-				if (!odpFile.isHidden() && !odpFile.isDirectory()) {
-					
-					OWLOntology odp;
-					String odpIri;
-
-					// Load the ODP file into an OWLOntology
-					try {
-			            OWLOntologyLoaderConfiguration config = new OWLOntologyLoaderConfiguration();
-			            FileDocumentSource fds = new FileDocumentSource(odpFile);
-			            config = config.setFollowRedirects(false);
-			            config = config.setMissingImportHandlingStrategy(MissingImportHandlingStrategy.SILENT);
-			            OWLOntologyManager manager = OWLManager.createOWLOntologyManager();
-						odp = manager.loadOntologyFromOntologyDocument(fds, config);
-					} 
-					catch (OWLOntologyCreationException e) {
-						log.error(String.format("Unable to parse ODP file %s. Error message: %s", odpFile.getAbsolutePath(), e.getMessage()));
-						return null;
+			
+			// Find out which ODP files (and which versions of them) are already indexed
+			Map<String,String> indexedFileHashes = new HashMap<String,String>();
+			if (incremental && !OdpMetadataStore.INSTANCE.isAvailable()) {
+				log.info("No ODP metadata store; falling back to full rebuild.");
+				incremental = false;
+			}
+			if (incremental) {
+				incremental = readIndexedFileHashes(dir, csvHash, indexedFileHashes);
+			}
+			
+			// Configure Lucene index
+			IndexWriterConfig iwc = new IndexWriterConfig(OdpAnalyzers.INDEX_ANALYZER);
+			iwc.setOpenMode(incremental ? OpenMode.APPEND : OpenMode.CREATE);
+			IndexWriter writer = new IndexWriter(dir, iwc);
+			
+			int indexingThreads = getIndexingThreads();
+			int filesIndexed = 0;
+			int filesUnchanged = 0;
+			int filesDeleted = 0;
+			List<String> filesFailed = new ArrayList<String>();
+			
+			// ODP metadata for retrieval is written to the metadata store rather than stored in Lucene
+			OdpMetadataStore.StoreWriter storeWriter = null;
+			
+			// Any failure before the writer is closed rolls it back, which releases the index write lock
+			try {
+				storeWriter = OdpMetadataStore.INSTANCE.newWriter();
+			
+				// Parse ODP files and build their documents on a pool of worker threads. Documents are 
+				// written in file order as they complete, so the resulting index is deterministic; the 
+				// number of documents built ahead of the writer is bounded to cap memory use.
+				Set<String> odpPaths = new HashSet<String>();
+				Deque<PendingDocument> pendingDocuments = new ArrayDeque<PendingDocument>();
+				ExecutorService indexingPool = Executors.newFixedThreadPool(indexingThreads);
+				try {
+					File[] files = odpRepository.listFiles();
+					Arrays.sort(files);
+					for (File odpFile: files) {
+						if (!odpFile.isHidden() && !odpFile.isDirectory()) {
+							// Skip files that have not changed since last indexed
+							job.filesFoundCounter().incrementAndGet();
+							String odpPath = odpFile.getCanonicalPath();
+							String odpHash = Files.hash(odpFile, Hashing.sha1()).toString();
+							odpPaths.add(odpPath);
+							if (odpHash.equals(indexedFileHashes.get(odpPath))) {
+								filesUnchanged++;
+								continue;
+							}
+						
+							Future<IndexedOdp> document = indexingPool.submit(new DocumentBuilder(odpFile, catalogue, job));
+							pendingDocuments.add(new PendingDocument(odpFile, odpPath, odpHash, document));
+							if (pendingDocuments.size() >= indexingThreads * 4) {
+								PendingDocument pendingDocument = pendingDocuments.poll();
+								if (writeDocument(writer, storeWriter, pendingDocument, job)) {
+									filesIndexed++;
+								}
+								else {
+									filesFailed.add(pendingDocument.odpFile.getName());
+								}
+							}
+						}
+					}
+					while (!pendingDocuments.isEmpty()) {
+						PendingDocument pendingDocument = pendingDocuments.poll();
+						if (writeDocument(writer, storeWriter, pendingDocument, job)) {
+							filesIndexed++;
+						}
+						else {
+							filesFailed.add(pendingDocument.odpFile.getName());
+						}
+					}
+				}
+				finally {
+					indexingPool.shutdownNow();
+				}
+			
+				// Remove documents of ODP files that have been deleted from the repository
+				for (String indexedPath: indexedFileHashes.keySet()) {
+					if (!odpPaths.contains(indexedPath)) {
+						log.info(String.format("Removing: %s", indexedPath));
+						writer.deleteDocuments(new Term("path", indexedPath));
+						filesDeleted++;
 					}
-			        
-			        // Extract the ODP IRI
-			        try {
-			        	odpIri =  odp.getOntologyID().getOntologyIRI().toString();
-			        }
-			        catch (NullPointerException npe) {
-			        	log.error(String.format("ODP file %s has no IRI. Error message: %s", odpFile.getAbsolutePath(), npe.getMessage()));
-			        	return null;
-			        }
-			        
-			        // Get classes and properties (using list as size is initially unknown)
-		            List<String> odpClassesList = new ArrayList<String>();
-		            List<String> odpPropertiesList = new ArrayList<String>();
-		            
-		            // Extract labels of classes and properties from ODP graph
-		            Set<OWLEntity> allEntities = odp.getSignature(false);
-		            for (OWLEntity anEntity: allEntities) {
-		            	
-		            	// By default use the local uri portion. 
-		            	@SuppressWarnings("deprecation")
-						String localURI = anEntity.getIRI().getFragment();
-		            	
-		      		  	for (CaseFormat c : CaseFormat.values())
-		      		  		localURI = c.to(CaseFormat.LOWER_UNDERSCORE, localURI);
-		      		  	String processedLocalURI = localURI.replace("_", " ").replace("-", " ");
-		      		  	
-		      		  	// If an rdfs:label is found, use that instead.
-		      		  	String entityLabel;
-		            	Optional<String> rdfsLabel = getRdfsLabel(anEntity,odp);
-		            	if (rdfsLabel.isPresent()) {
-		            		entityLabel = rdfsLabel.get();
-		            	}
-		            	else {
-		            		entityLabel = processedLocalURI;
-		            	}
-		            	
-		            	// Sort classes and properties into their respective lists
-		            	if (anEntity instanceof OWLClass) {
-		            		odpClassesList.add(entityLabel);
-		            	}
-		            	
-		            	if (anEntity instanceof OWLObjectProperty || anEntity instanceof OWLDataProperty) {
-		            		odpPropertiesList.add(entityLabel);
-		            	}
-			        }
-		            
-		            // Fetch previously retrieved data from CSV, if it exists. Then get the details
-		            // from the file itself. Finally, merge the two details objects together, keeping
-		            // the best of both.
-			        CodpDetails odpDetailsFromCsv = iriToDetailsMap.get(odpIri);
-			        if (odpDetailsFromCsv == null) {
-			        	// This step is because often users publish ODPs on the portal with reference to 
-			        	// an IRI building block which is actually different from the base IRI in the ODP
-			        	// itself; typically the .owl ending is available in the portal but not part of 
-			        	// the ODP ontology namespace.
-			        	odpDetailsFromCsv = iriToDetailsMap.get(odpIri + ".owl");
-			        }
-			        CodpDetails odpDetailsFromFile = parseOdpDetails(odpIri, odp);
-			        CodpDetails odpDetails = mergeCodpDetails(odpDetailsFromCsv, odpDetailsFromFile);
-			        
-		        	log.info(String.format("Indexing: %s", odpDetails.getIri()));
-		        	
-		        	// List of all terms
-		            List<String> allTerms = new ArrayList<String>();
-		            allTerms.addAll(odpClassesList);
-		            allTerms.addAll(odpPropertiesList);
-		        	
-		        	// Make a new, empty Lucene document
-		            Document doc = new Document();
-		            
-		            // Add IRI 
-		            Field uriField = new StringField("iri", odpIri, Field.Store.YES);
-		            doc.add(uriField);
-		            
-		            // Add name
-		            String odpName = odpDetails.getName();
-	    	        Field nameField = new StringField("name", odpName, Field.Store.YES);
-	    	        doc.add(nameField);
-	    	        allTerms.add(odpName);
-		            
-		            // Add path of actual building block
-		            Field pathField = new StringField("path", odpFile.getCanonicalPath(), Field.Store.YES);
-		            doc.add(pathField);
-		            
-		            // Add image
-		            if (odpDetails.getImageIri().isPresent()) {
-		            	Field imageField = new StringField("image", odpDetails.getImageIri().get(), Field.Store.YES);
-		            	doc.add(imageField);
-		            }
-		            
-		            // Add intent
-		            if (odpDetails.getIntent().isPresent()) {
-		            	String odpIntent = odpDetails.getIntent().get();
-		            	Field intentField = new StringField("intent", odpIntent, Field.Store.YES);
-		            	doc.add(intentField);
-		            	allTerms.add(odpIntent);
-		            }
-		            
-		            // Add description
-		            if (odpDetails.getDescription().isPresent()) {
-		            	String odpDescription = odpDetails.getDescription().get();
-		            	Field descriptionField = new StringField("description", odpDescription, Field.Store.YES);
-		            	doc.add(descriptionField);
-		            	allTerms.add(odpDescription);
-		            }
-		            
-		            // Add consequences
-		            if (odpDetails.getConsequences().isPresent()) {
-		            	String odpConsequences = odpDetails.getConsequences().get();
-		            	Field consequencesField = new StringField("consequences", odpConsequences, Field.Store.YES);
-		            	doc.add(consequencesField);
-		            	allTerms.add(odpConsequences);
-		            }
-		            
-		            // Add domains
-		            for (String domain: odpDetails.getDomains()) {
-	    	        	Field domainField = new TextField("domain", domain, Field.Store.YES);
-	    	        	doc.add(domainField);
-		    	    }
-		            allTerms.addAll(odpDetails.getDomains());
-		            
-		            // Add scenarios
-		            for (String scenario: odpDetails.getScenarios()) {
-	    	        	Field scenarioField = new TextField("scenario", scenario, Field.Store.YES);
-	    	        	doc.add(scenarioField);
-		    	    }
-		            allTerms.addAll(odpDetails.getScenarios());
-		            
-		            // Add CQ:s
-		            for (String cq: odpDetails.getCqs()) {
-	    	        	Field cqField = new TextField("cq", cq, Field.Store.YES);
-	    	        	doc.add(cqField);
-		    	    }
-		            allTerms.addAll(odpDetails.getCqs());
-		            
-		            // Tokenize all terms, clean out whitespace, and find synonyms
-		            String allTermsConcatenated = StringUtils.collectionToDelimitedString(allTerms, " ");
-		            List<String> allTermsCleaned = new ArrayList<String>();
-		            List<String> synonymsList = new ArrayList<String>();
-		        	Analyzer wsAnalyzer = new WhitespaceAnalyzer();
-		        	TokenStream tokenStream = wsAnalyzer.tokenStream(null, new StringReader(allTermsConcatenated));
-		        	tokenStream.reset();
-		        	while(tokenStream.incrementToken()) {
-		        		// Get word (token) without whitespace
-		        		String token = tokenStream.getAttribute(CharTermAttribute.class).toString();
-		        		allTermsCleaned.add(token);
-		        		
-		                // Find synonyms for each word in WordNet
-		        		synonymsList.add(token);
-		        		synonymsList.addAll(getSynonyms(token));
-		        	}
-		        	wsAnalyzer.close();
-		        	
-		        	// Add all terms and synonyms to index
-		            String allTermsCleanedConcatenated = StringUtils.collectionToDelimitedString(allTermsCleaned, " ");
-		            doc.add(new TextField("allterms", allTermsCleanedConcatenated, Field.Store.YES));
-		            String synonyms = StringUtils.collectionToDelimitedString(synonymsList, " ");
-		            doc.add(new TextField("synonyms", synonyms, Field.Store.YES));
-		            
-		            // Write or update index
-		            if (writer.getConfig().getOpenMode() == OpenMode.CREATE) {
-		                // New index, so we just add the document (no old document can be there):
-		                writer.addDocument(doc);
-		            } 
-		            else {
-		                // Existing index (an old copy of this document may have been indexed) so 
-		                // we use updateDocument instead to replace the old one matching the exact 
-		                // uri, if present:
-		                writer.updateDocument(new Term("iri", odpDetails.getIri()), doc);
-		            }
 				}
+			
+				// Record what this index was built from, for later incremental updates
+				Map<String,String> commitData = new HashMap<String,String>();
+				commitData.put("schemaVersion", getIndexSchemaVersion());
+				commitData.put("csvHash", csvHash);
+				writer.setLiveCommitData(commitData.entrySet());
+				writer.close();
+			}
+			catch (Throwable e) {
+				if (storeWriter != null) {
+					storeWriter.abort();
+				}
+				try {
+					writer.rollback();
+				}
+				catch (IOException rollbackException) {
+					e.addSuppressed(rollbackException);
+				}
+				throw e;
 			}
-			writer.close();
+			
+			// Complete the metadata store with the unchanged ODPs of an incremental update, and swap it in
+			int storeSize = writeMetadataStore(dir, storeWriter);
 			long luceneEndTime = System.nanoTime();
-			float luceneDuration = (luceneEndTime - luceneStartTime) / 1000000000;
-			String luceneStatus = String.format("Lucene index rebuilt in %.1f seconds.", luceneDuration);
+			float luceneDuration = (luceneEndTime - luceneStartTime) / 1000000000f;
+			String luceneStatus = String.format("Lucene index %s in %.2f seconds using %d threads: %d ODPs indexed, %d unchanged, %d removed, %d failed; "
+					+ "index size %.1f MB, metadata store holds %d ODPs.", 
+					incremental ? "updated" : "rebuilt", luceneDuration, indexingThreads, filesIndexed, filesUnchanged, filesDeleted, filesFailed.size(), 
+					getIndexSize(dir) / (1024.0 * 1024.0), storeSize);
+			if (!filesFailed.isEmpty()) {
+				luceneStatus = String.format("%s Unparseable ODP files: %s", luceneStatus, StringUtils.collectionToDelimitedString(filesFailed, ", "));
+			}
 			log.info(luceneStatus);
 			
+			// Precompute synonyms for the index vocabulary, used for query expansion
+			if (filesIndexed > 0 || filesDeleted > 0 || !SynonymLookup.INSTANCE.hasSynonymTable()) {
+				try (IndexReader reader = DirectoryReader.open(dir)) {
+					int synonymTableSize = SynonymLookup.INSTANCE.writeSynonymTable(reader, "allterms");
+					log.info(String.format("Synonym table rebuilt for %d terms.", synonymTableSize));
+				}
+				catch (IOException e) {
+					log.error(String.format("Unable to rebuild synonym table. Error message: %s", e.getMessage()));
+				}
+			}
+			
+			// SemanticVectors are trained over the whole corpus; no need to retrain if nothing changed
+			if (filesIndexed == 0 && filesDeleted == 0 && incremental) {
+				return String.format("%s<br />%s<br />%s", csvStatus, luceneStatus, "Semantic Vectors index up to date.");
+			}
+			
+			job.startPhase(IndexingJob.Phase.SEMANTIC_VECTORS);
 			long vectorsStartTime = System.nanoTime();
 			String termVectorsPath = String.format("%stermvectors", vectorBasePath);
 			String docVectorsPath = String.format("%sdocvectors", vectorBasePath);
@@ -403,16 +437,529 @@ public class Indexer {
 				BuildIndex.main(configurationArray);
 			} catch (Exception e) {
 				log.fatal(String.format("Semantic Vectors construction failed with error: %s", e.getMessage()));
+				LuceneSearcherManager.INSTANCE.refresh();
+				job.finish(false, "Semantic Vectors index construction failed.");
 				return "Semantic Vectors index construction failed.";
 			}
 			long vectorsEndTime = System.nanoTime();
-			float vectorsDuration = (vectorsEndTime - vectorsStartTime) / 1000000000;
-			String vectorsStatus = String.format("Semantic Vectors index rebuilt in %.1f seconds.", vectorsDuration);
+			float vectorsDuration = (vectorsEndTime - vectorsStartTime) / 1000000000f;
+			String vectorsStatus = String.format("Semantic Vectors index rebuilt in %.2f seconds.", vectorsDuration);
+			
+			// Approximate nearest neighbour graph over the new document vectors; without it, semantic search stays exact
+			try {
+				int hnswMaxConnections = Integer.parseInt(searchProperties.getProperty("hnswMaxConnections", "16"));
+				int hnswEfConstruction = Integer.parseInt(searchProperties.getProperty("hnswEfConstruction", "100"));
+				int hnswSize = SemanticVectorIndex.INSTANCE.buildHnswIndex(hnswMaxConnections, hnswEfConstruction);
+				float hnswDuration = (System.nanoTime() - vectorsEndTime) / 1000000000f;
+				log.info(String.format("HNSW graph built over %d document vectors in %.2f seconds.", hnswSize, hnswDuration));
+				vectorsStatus = String.format("%s HNSW graph built over %d document vectors in %.2f seconds.", vectorsStatus, hnswSize, hnswDuration);
+			}
+			catch (IOException | RuntimeException e) {
+				// Not fatal: without a graph, semantic search stays exact
+				log.error(String.format("Unable to build HNSW graph. Error message: %s", e.getMessage()));
+			}
+			
+			// Swap in the rebuilt indexes for searches and retrieval
+			LuceneSearcherManager.INSTANCE.refresh();
+			SemanticVectorIndex.INSTANCE.reload();
+			CompositeSearch.INSTANCE.invalidateResultCache();
 			
 			return String.format("%s<br />%s<br />%s", csvStatus, luceneStatus, vectorsStatus);
 		}
 	}
 	
+	/**
+	 * Reads the content hashes of all ODP files in an existing Lucene index, keyed on file path.
+	 * @param dir Directory holding the Lucene index.
+	 * @param csvHash Hash of the ODP CSV file that the index is to be consistent with.
+	 * @param indexedFileHashes Map that the file path to hash entries are added to.
+	 * @return False if the existing index cannot be incrementally updated (no index, different schema version,
+	 * or built from a different ODP CSV file), meaning that a full rebuild is required.
+	 * @throws IOException
+	 */
+	private static boolean readIndexedFileHashes(Directory dir, String csvHash, Map<String,String> indexedFileHashes) throws IOException {
+		if (!DirectoryReader.indexExists(dir)) {
+			log.info("No existing Lucene index; falling back to full rebuild.");
+			return false;
+		}
+		DirectoryReader reader = DirectoryReader.open(dir);
+		try {
+			Map<String,String> commitData = reader.getIndexCommit().getUserData();
+			if (!getIndexSchemaVersion().equals(commitData.get("schemaVersion"))) {
+				log.info("Lucene index schema version has changed; falling back to full rebuild.");
+				return false;
+			}
+			if (!csvHash.equals(commitData.get("csvHash"))) {
+				log.info("ODP CSV file has changed; falling back to full rebuild.");
+				return false;
+			}
+			Set<String> fieldsToLoad = new HashSet<String>(Arrays.asList("path", "hash"));
+			Bits liveDocs = MultiFields.getLiveDocs(reader);
+			for (int i=0; i<reader.maxDoc(); i++) {
+				if (liveDocs != null && !liveDocs.get(i)) {
+					continue;
+				}
+				Document doc = reader.document(i, fieldsToLoad);
+				if (doc.get("path") != null && doc.get("hash") != null) {
+					indexedFileHashes.put(doc.get("path"), doc.get("hash"));
+				}
+			}
+			return true;
+		}
+		finally {
+			reader.close();
+		}
+	}
+	
+	/**
+	 * Adds the metadata of all ODPs in the Lucene index that were not (re-)indexed by this job to
+	 * a new metadata store, copying it from the current store, and then replaces the current store.
+	 * @param dir Directory holding the newly written Lucene index.
+	 * @param storeWriter Writer holding the metadata of the ODPs indexed by this job.
+	 * @return Number of ODPs in the new metadata store.
+	 * @throws IOException
+	 */
+	private static int writeMetadataStore(Directory dir, OdpMetadataStore.StoreWriter storeWriter) throws IOException {
+		try {
+			try (DirectoryReader reader = DirectoryReader.open(dir)) {
+				Bits liveDocs = MultiFields.getLiveDocs(reader);
+				for (int i=0; i<reader.maxDoc(); i++) {
+					if (liveDocs != null && !liveDocs.get(i)) {
+						continue;
+					}
+					String odpIri = reader.document(i, IRI_FIELD).get("iri");
+					if (odpIri != null && !storeWriter.copyFromCurrent(odpIri)) {
+						log.error(String.format("No metadata for indexed ODP %s; a full index rebuild is needed to restore it.", odpIri));
+					}
+				}
+			}
+			int storeSize = storeWriter.commit();
+			OdpMetadataStore.INSTANCE.reload();
+			return storeSize;
+		}
+		catch (IOException | RuntimeException e) {
+			storeWriter.abort();
+			throw e;
+		}
+	}
+	
+	/**
+	 * Whether the allterms and synonyms fields are stored, as configured by the storeTermFields
+	 * property; by default they are indexed only.
+	 */
+	private static boolean isStoringTermFields() {
+		return Boolean.parseBoolean(searchProperties.getProperty("storeTermFields", "false").trim());
+	}
+	
+	/**
+	 * Schema version of indexes built with the current configuration; indexes with and without
+	 * stored allterms and synonyms fields are not interchangeable.
+	 */
+	private static String getIndexSchemaVersion() {
+		return isStoringTermFields() ? String.format("%s-stored", INDEX_SCHEMA_VERSION) : INDEX_SCHEMA_VERSION;
+	}
+	
+	/**
+	 * @return Total size in bytes of the files in a Lucene index directory.
+	 */
+	private static long getIndexSize(Directory dir) throws IOException {
+		long indexSize = 0;
+		for (String fileName: dir.listAll()) {
+			indexSize += dir.fileLength(fileName);
+		}
+		return indexSize;
+	}
+	
+	/**
+	 * Number of worker threads used to parse ODP files, as configured by the indexingThreads 
+	 * property; defaults to the number of available processors.
+	 */
+	private static int getIndexingThreads() {
+		String indexingThreads = searchProperties.getProperty("indexingThreads");
+		if (indexingThreads != null && Integer.parseInt(indexingThreads.trim()) > 0) {
+			return Integer.parseInt(indexingThreads.trim());
+		}
+		return Runtime.getRuntime().availableProcessors();
+	}
+	
+	/**
+	 * Waits for a pending document to be built and writes it to the index.
+	 * @param writer Lucene index writer.
+	 * @param storeWriter Writer of the new ODP metadata store.
+	 * @param pendingDocument Document being built on the indexing pool.
+	 * @param job Indexing job to report progress to.
+	 * @return False if the ODP file could not be indexed (errors are logged per file).
+	 * @throws IOException If writing to the index fails.
+	 */
+	private static boolean writeDocument(IndexWriter writer, OdpMetadataStore.StoreWriter storeWriter, PendingDocument pendingDocument, IndexingJob job) throws IOException {
+		IndexedOdp indexedOdp;
+		try {
+			indexedOdp = pendingDocument.document.get();
+		}
+		catch (ExecutionException e) {
+			log.error(String.format("Unable to index ODP file %s. Error message: %s", pendingDocument.odpFile.getAbsolutePath(), e.getCause().getMessage()));
+			return false;
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for ODP document to be built.", e);
+		}
+		if (indexedOdp == null) {
+			return false;
+		}
+		Document doc = indexedOdp.document;
+		doc.add(new StringField("hash", pendingDocument.odpHash, Field.Store.YES));
+		
+		// Write or update index
+		if (writer.getConfig().getOpenMode() == OpenMode.CREATE) {
+			// New index, so we just add the document (no old document can be there):
+			writer.addDocument(doc);
+		} 
+		else {
+			// Existing index (an old copy of this document may have been indexed) so 
+			// we use updateDocument instead to replace the old one matching the exact 
+			// file path, if present:
+			writer.updateDocument(new Term("path", pendingDocument.odpPath), doc);
+		}
+		storeWriter.add(indexedOdp.details);
+		job.documentsWrittenCounter().incrementAndGet();
+		return true;
+	}
+	
+	/**
+	 * Task building the Lucene document for one ODP file on the indexing pool.
+	 */
+	private class DocumentBuilder implements Callable<IndexedOdp> {
+		private final File odpFile;
+		private final OdpCatalogue catalogue;
+		private final IndexingJob job;
+		
+		private DocumentBuilder(File odpFile, OdpCatalogue catalogue, IndexingJob job) {
+			this.odpFile = odpFile;
+			this.catalogue = catalogue;
+			this.job = job;
+		}
+
+		@Override
+		public IndexedOdp call() throws IOException {
+			try {
+				return buildDocument(odpFile, catalogue);
+			}
+			finally {
+				job.filesParsedCounter().incrementAndGet();
+			}
+		}
+	}
+	
+	/**
+	 * An ODP file whose document is being built, in the order it is to be written.
+	 */
+	private static class PendingDocument {
+		private final File odpFile;
+		private final String odpPath;
+		private final String odpHash;
+		private final Future<IndexedOdp> document;
+		
+		private PendingDocument(File odpFile, String odpPath, String odpHash, Future<IndexedOdp> document) {
+			this.odpFile = odpFile;
+			this.odpPath = odpPath;
+			this.odpHash = odpHash;
+			this.document = document;
+		}
+	}
+	
+	/**
+	 * The Lucene document built for an ODP file, and the ODP's metadata for the metadata store.
+	 */
+	private static class IndexedOdp {
+		private final Document document;
+		private final CodpDetails details;
+		
+		private IndexedOdp(Document document, CodpDetails details) {
+			this.document = document;
+			this.details = details;
+		}
+	}
+	
+	/**
+	 * Parses an ODP OWL file and builds the Lucene document for it, merging in metadata 
+	 * from the ODP CSV file where available.
+	 * @param odpFile ODP file to parse.
+	 * @param catalogue ODP catalogue holding the ODP details parsed from CSV.
+	 * @return Lucene document and merged ODP metadata, or null if the file could not be parsed.
+	 * @throws IOException
+	 */
+	private IndexedOdp buildDocument(File odpFile, OdpCatalogue catalogue) throws IOException {
+		OWLOntology odp;
+		String odpIri;
+
+		// Load the ODP file into an OWLOntology
+		try {
+			OWLOntologyLoaderConfiguration config = new OWLOntologyLoaderConfiguration();
+			FileDocumentSource fds = new FileDocumentSource(odpFile);
+			config = config.setFollowRedirects(false);
+			config = config.setMissingImportHandlingStrategy(MissingImportHandlingStrategy.SILENT);
+			OWLOntologyManager manager = OWLManager.createOWLOntologyManager();
+			odp = manager.loadOntologyFromOntologyDocument(fds, config);
+		} 
+		catch (OWLOntologyCreationException e) {
+			log.error(String.format("Unable to parse ODP file %s. Error message: %s", odpFile.getAbsolutePath(), e.getMessage()));
+			return null;
+		}
+
+		// Extract the ODP IRI
+		try {
+			odpIri =  odp.getOntologyID().getOntologyIRI().toString();
+		}
+		catch (NullPointerException npe) {
+			log.error(String.format("ODP file %s has no IRI. Error message: %s", odpFile.getAbsolutePath(), npe.getMessage()));
+			return null;
+		}
+
+		// Get classes and properties (using list as size is initially unknown)
+		List<String> odpClassesList = new ArrayList<String>();
+		List<String> odpPropertiesList = new ArrayList<String>();
+
+		// Extract labels of classes and properties from ODP graph
+		Set<OWLEntity> allEntities = odp.getSignature(false);
+		for (OWLEntity anEntity: allEntities) {
+
+			// By default use the local uri portion. 
+			@SuppressWarnings("deprecation")
+			String localURI = anEntity.getIRI().getFragment();
+
+			for (CaseFormat c : CaseFormat.values())
+				localURI = c.to(CaseFormat.LOWER_UNDERSCORE, localURI);
+			String processedLocalURI = localURI.replace("_", " ").replace("-", " ");
+
+			// If an rdfs:label is found, use that instead.
+			String entityLabel;
+			Optional<String> rdfsLabel = getRdfsLabel(anEntity,odp);
+			if (rdfsLabel.isPresent()) {
+				entityLabel = rdfsLabel.get();
+			}
+			else {
+				entityLabel = processedLocalURI;
+			}
+
+			// Sort classes and properties into their respective lists
+			if (anEntity instanceof OWLClass) {
+				odpClassesList.add(entityLabel);
+			}
+
+			if (anEntity instanceof OWLObjectProperty || anEntity instanceof OWLDataProperty) {
+				odpPropertiesList.add(entityLabel);
+			}
+		}
+
+		// Fetch previously retrieved data from CSV, if it exists. Then get the details
+		// from the file itself. Finally, merge the two details objects together, keeping
+		// the best of both.
+		CodpDetails odpDetailsFromCsv = catalogue.get(odpIri);
+		if (odpDetailsFromCsv == null) {
+			// This step is because often users publish ODPs on the portal with reference to 
+			// an IRI building block which is actually different from the base IRI in the ODP
+			// itself; typically the .owl ending is available in the portal but not part of 
+			// the ODP ontology namespace.
+			odpDetailsFromCsv = catalogue.get(odpIri + ".owl");
+		}
+		CodpDetails odpDetailsFromFile = parseOdpDetails(odpIri, odp);
+		CodpDetails odpDetails = mergeCodpDetails(odpDetailsFromCsv, odpDetailsFromFile);
+
+		log.info(String.format("Indexing: %s", odpDetails.getIri()));
+
+		// List of all terms
+		List<String> allTerms = new ArrayList<String>();
+		allTerms.addAll(odpClassesList);
+		allTerms.addAll(odpPropertiesList);
+
+		// Make a new, empty Lucene document
+		Document doc = new Document();
+
+		// Add IRI 
+		Field uriField = new StringField("iri", odpIri, Field.Store.YES);
+		doc.add(uriField);
+
+		// Add name
+		String odpName = odpDetails.getName();
+		Field nameField = new StringField("name", odpName, Field.Store.YES);
+		doc.add(nameField);
+		doc.add(new TextField("nametext", odpName, Field.Store.NO));
+		allTerms.add(odpName);
+
+		// Add path of actual building block
+		Field pathField = new StringField("path", odpFile.getCanonicalPath(), Field.Store.YES);
+		doc.add(pathField);
+
+		// Add intent and description, for multi-field search. Image and consequences are only 
+		// displayed, so they are kept in the metadata store only; all text is searchable through allterms
+		if (odpDetails.getIntent().isPresent()) {
+			doc.add(new TextField("intent", odpDetails.getIntent().get(), Field.Store.NO));
+			allTerms.add(odpDetails.getIntent().get());
+		}
+		if (odpDetails.getDescription().isPresent()) {
+			doc.add(new TextField("description", odpDetails.getDescription().get(), Field.Store.NO));
+			allTerms.add(odpDetails.getDescription().get());
+		}
+		if (odpDetails.getConsequences().isPresent()) {
+			allTerms.add(odpDetails.getConsequences().get());
+		}
+
+		// Add domains
+		for (String domain: odpDetails.getDomains()) {
+			Field domainField = new TextField("domain", domain, Field.Store.YES);
+			doc.add(domainField);
+		}
+		allTerms.addAll(odpDetails.getDomains());
+
+		// Add scenarios
+		for (String scenario: odpDetails.getScenarios()) {
+			Field scenarioField = new TextField("scenario", scenario, Field.Store.NO);
+			doc.add(scenarioField);
+		}
+		allTerms.addAll(odpDetails.getScenarios());
+
+		// Add CQ:s
+		for (String cq: odpDetails.getCqs()) {
+			Field cqField = new TextField("cq", cq, Field.Store.NO);
+			doc.add(cqField);
+		}
+		allTerms.addAll(odpDetails.getCqs());
+
+		// Tokenize all terms, clean out whitespace, and find synonyms
+		String allTermsConcatenated = StringUtils.collectionToDelimitedString(allTerms, " ");
+		List<String> allTermsCleaned = new ArrayList<String>();
+		List<String> synonymsList = new ArrayList<String>();
+		try (TokenStream tokenStream = OdpAnalyzers.WHITESPACE_ANALYZER.tokenStream(null, new StringReader(allTermsConcatenated))) {
+			CharTermAttribute termAttribute = tokenStream.addAttribute(CharTermAttribute.class);
+			tokenStream.reset();
+			while(tokenStream.incrementToken()) {
+				// Get word (token) without whitespace
+				String token = termAttribute.toString();
+				allTermsCleaned.add(token);
+	
+				// Find synonyms for each word in WordNet
+				synonymsList.add(token);
+				synonymsList.addAll(SynonymLookup.INSTANCE.getSynonyms(token));
+			}
+			tokenStream.end();
+		}
+
+		// Add all terms and synonyms to index
+		String allTermsCleanedConcatenated = StringUtils.collectionToDelimitedString(allTermsCleaned, " ");
+		String synonyms = StringUtils.collectionToDelimitedString(synonymsList, " ");
+		if (isStoringTermFields()) {
+			doc.add(new TextField("allterms", allTermsCleanedConcatenated, Field.Store.YES));
+			doc.add(new TextField("synonyms", synonyms, Field.Store.YES));
+		}
+		else {
+			// Nothing reads these back, so they are not stored; they are the largest fields per document
+			doc.add(new Field("allterms", allTermsCleanedConcatenated, ALLTERMS_FIELD_TYPE));
+			doc.add(new TextField("synonyms", synonyms, Field.Store.NO));
+		}
+		
+		// Add the attributes that search filters operate on
+		addFilterFields(doc, odp, odpDetails, odpClassesList.size() + odpPropertiesList.size());
+		
+		return new IndexedOdp(doc, odpDetails);
+	}
+	
+	/**
+	 * Adds untokenized, normalized (see {@link #normalizeFilterValue(String)}) fields for the 
+	 * attributes that the ODP search filter (OdpSearchFilterConfiguration) can constrain:
+	 * <ul>
+	 * <li>category: the ODP's domains</li>
+	 * <li>size: small, medium or large, by number of classes and properties</li>
+	 * <li>profile: the OWL 2 profiles (OWL 2 DL, EL, QL, RL) that the ODP falls within</li>
+	 * <li>strategy: the specialisation strategies the ODP supports; class-oriented if it has 
+	 * property restrictions on classes, property-oriented if it has property domains or ranges, 
+	 * and hybrid if both</li>
+	 * <li>mapping: dolce, schemaorg and/or dbpedia, if the ODP imports or references entities 
+	 * from the respective namespace</li>
+	 * </ul>
+	 */
+	private static void addFilterFields(Document doc, OWLOntology odp, CodpDetails odpDetails, int entityCount) {
+		// Category
+		for (String domain: odpDetails.getDomains()) {
+			if (!domain.trim().isEmpty()) {
+				doc.add(new StringField("category", normalizeFilterValue(domain), Field.Store.NO));
+			}
+		}
+		
+		// Size
+		String size;
+		if (entityCount < SMALL_ODP_MAX_ENTITIES) {
+			size = "small";
+		}
+		else if (entityCount < MEDIUM_ODP_MAX_ENTITIES) {
+			size = "medium";
+		}
+		else {
+			size = "large";
+		}
+		doc.add(new StringField("size", size, Field.Store.NO));
+		
+		// OWL 2 profiles
+		OWLProfile[] profiles = {new OWL2DLProfile(), new OWL2ELProfile(), new OWL2QLProfile(), new OWL2RLProfile()};
+		for (OWLProfile profile: profiles) {
+			if (profile.checkOntology(odp).isInProfile()) {
+				doc.add(new StringField("profile", normalizeFilterValue(profile.getName()), Field.Store.NO));
+			}
+		}
+		
+		// Specialisation strategies
+		boolean classOriented = false;
+		for (OWLSubClassOfAxiom axiom: odp.getAxioms(AxiomType.SUBCLASS_OF)) {
+			if (axiom.getSuperClass() instanceof OWLQuantifiedRestriction) {
+				classOriented = true;
+				break;
+			}
+		}
+		boolean propertyOriented = !odp.getAxioms(AxiomType.OBJECT_PROPERTY_DOMAIN).isEmpty() || 
+				!odp.getAxioms(AxiomType.OBJECT_PROPERTY_RANGE).isEmpty() || 
+				!odp.getAxioms(AxiomType.DATA_PROPERTY_DOMAIN).isEmpty();
+		if (classOriented) {
+			doc.add(new StringField("strategy", normalizeFilterValue("class-oriented"), Field.Store.NO));
+		}
+		if (propertyOriented) {
+			doc.add(new StringField("strategy", normalizeFilterValue("property-oriented"), Field.Store.NO));
+		}
+		if (classOriented && propertyOriented) {
+			doc.add(new StringField("strategy", normalizeFilterValue("hybrid"), Field.Store.NO));
+		}
+		
+		// Alignments to well-known ontologies, through imports or referenced entities
+		Set<String> referencedIris = new HashSet<String>();
+		for (OWLImportsDeclaration importsDeclaration: odp.getImportsDeclarations()) {
+			referencedIris.add(importsDeclaration.getIRI().toString());
+		}
+		for (OWLEntity entity: odp.getSignature(false)) {
+			referencedIris.add(entity.getIRI().toString());
+		}
+		Set<String> mappings = new HashSet<String>();
+		for (String referencedIri: referencedIris) {
+			for (Map.Entry<String,String> mappingNamespace: MAPPING_NAMESPACES.entrySet()) {
+				if (referencedIri.startsWith(mappingNamespace.getKey())) {
+					mappings.add(mappingNamespace.getValue());
+				}
+			}
+		}
+		for (String mapping: mappings) {
+			doc.add(new StringField("mapping", mapping, Field.Store.NO));
+		}
+	}
+	
+	/**
+	 * Normalizes an ODP attribute value for exact filter matching, both when indexing and when 
+	 * searching: lower case, with everything but letters and digits removed (so that, e.g., 
+	 * "OWL 2 EL" and "owl2el", or "Class-oriented" and "class oriented", match).
+	 * @param value Attribute or filter value.
+	 * @return The normalized value.
+	 */
+	public static String normalizeFilterValue(String value) {
+		return value.toLowerCase(Locale.ENGLISH).replaceAll("[^\\p{L}\\p{N}]", "");
+	}
+	
 	// First is authoritative version - second is used for enrichment if needed
 	private CodpDetails mergeCodpDetails(CodpDetails odpDetailsFromCsv, CodpDetails odpDetailsFromFile) {
 		if (odpDetailsFromCsv == null) {
@@ -593,18 +1140,5 @@ public class Indexer {
 		return Optional.absent();
 	}
 	
-	public static List<String> getSynonyms(String inputWord) {
-		List<String> synonyms = new ArrayList<String>();
-		IIndexWord idxWord = wordnetDictionary.getIndexWord(inputWord, POS.NOUN);
-		if (idxWord != null) {
-			IWordID wordID = idxWord.getWordIDs().get(0);
-			IWord word = wordnetDictionary.getWord(wordID);
-			ISynset synset = word.getSynset();
-			for (IWord w: synset.getWords()) {
-				synonyms.add(w.getLemma());
-			}
-		}
-		return synonyms;
-	}
 	
 }
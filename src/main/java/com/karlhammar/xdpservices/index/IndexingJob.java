@@ -0,0 +1,133 @@
+package com.karlhammar.xdpservices.index;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Status and progress of one index build, serialized to clients polling the indexing job endpoints.
+ * Progress counters are updated by the indexing threads while the job runs.
+ */
+public class IndexingJob {
+
+	public enum State { QUEUED, RUNNING, COMPLETED, FAILED }
+
+	public enum Phase { CSV, LUCENE, SEMANTIC_VECTORS, DONE }
+
+	private final String jobId;
+	private final boolean incremental;
+	private final long submittedAt;
+	private volatile State state;
+	private volatile Phase phase;
+	private volatile long phaseStartTime;
+	private volatile String message;
+	private final Map<Phase,Double> phaseSeconds;
+	private final AtomicInteger filesFound;
+	private final AtomicInteger filesParsed;
+	private final AtomicInteger documentsWritten;
+
+	public IndexingJob(boolean incremental) {
+		this.jobId = UUID.randomUUID().toString();
+		this.incremental = incremental;
+		this.submittedAt = System.currentTimeMillis();
+		this.state = State.QUEUED;
+		this.phaseSeconds = new LinkedHashMap<Phase,Double>();
+		this.filesFound = new AtomicInteger();
+		this.filesParsed = new AtomicInteger();
+		this.documentsWritten = new AtomicInteger();
+	}
+
+	/**
+	 * Marks the end of the current phase (recording its duration) and the start of the next one.
+	 * @param nextPhase The phase being entered.
+	 */
+	synchronized void startPhase(Phase nextPhase) {
+		long now = System.nanoTime();
+		if (phase == null) {
+			state = State.RUNNING;
+		}
+		else {
+			phaseSeconds.put(phase, (now - phaseStartTime) / 1000000000.0);
+		}
+		phase = nextPhase;
+		phaseStartTime = now;
+	}
+
+	/**
+	 * Marks the job as finished, closing the current phase.
+	 * @param succeeded Whether the index was built successfully.
+	 * @param message User friendly indexing success/failure message.
+	 */
+	synchronized void finish(boolean succeeded, String message) {
+		if (phase != null && phase != Phase.DONE) {
+			startPhase(Phase.DONE);
+		}
+		this.message = message;
+		this.state = succeeded ? State.COMPLETED : State.FAILED;
+	}
+
+	AtomicInteger filesFoundCounter() {
+		return filesFound;
+	}
+
+	AtomicInteger filesParsedCounter() {
+		return filesParsed;
+	}
+
+	AtomicInteger documentsWrittenCounter() {
+		return documentsWritten;
+	}
+
+	// Accessor functions below
+	public String getJobId() {
+		return jobId;
+	}
+
+	public boolean isIncremental() {
+		return incremental;
+	}
+
+	public long getSubmittedAt() {
+		return submittedAt;
+	}
+
+	public State getState() {
+		return state;
+	}
+
+	public Phase getPhase() {
+		return phase;
+	}
+
+	public String getMessage() {
+		return message;
+	}
+
+	public int getFilesFound() {
+		return filesFound.get();
+	}
+
+	public int getFilesParsed() {
+		return filesParsed.get();
+	}
+
+	public int getDocumentsWritten() {
+		return documentsWritten.get();
+	}
+
+	/**
+	 * Elapsed seconds per phase; the phase currently running is reported with its time so far.
+	 */
+	public synchronized Map<Phase,Double> getPhaseSeconds() {
+		Map<Phase,Double> elapsed = new LinkedHashMap<Phase,Double>(phaseSeconds);
+		if (phase != null && phase != Phase.DONE) {
+			elapsed.put(phase, (System.nanoTime() - phaseStartTime) / 1000000000.0);
+		}
+		return elapsed;
+	}
+
+	public boolean isFinished() {
+		return state == State.COMPLETED || state == State.FAILED;
+	}
+}
@@ -0,0 +1,148 @@
+package com.karlhammar.xdpservices.index;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.ReferenceManager;
+import org.apache.lucene.search.SearcherManager;
+import org.apache.lucene.store.FSDirectory;
+
+import com.karlhammar.xdpservices.PropertyOverrides;
+
+/**
+ * Shares one reference-counted Lucene IndexSearcher between all components that read the index
+ * (search, metadata retrieval, building block retrieval). Callers {@link #acquire()} a searcher,
+ * use it, and then {@link #release(IndexSearcher)} it; after an index rebuild, {@link #refresh()}
+ * atomically swaps in a searcher over the new index while in-flight requests finish on the old one.
+ */
+public class LuceneSearcherManager {
+
+	// Singleton instance.
+	public final static LuceneSearcherManager INSTANCE = new LuceneSearcherManager();
+
+	// Singleton properties.
+	private static Log log;
+	private static Properties indexProperties;
+	private static volatile SearcherManager searcherManager;
+	private static List<ReferenceManager.RefreshListener> refreshListeners;
+
+	/**
+	 * Private singleton constructor opening the index for the first time, if it exists.
+	 */
+	private LuceneSearcherManager() {
+		// Instantiate logging
+		log = LogFactory.getLog(LuceneSearcherManager.class);
+		refreshListeners = new CopyOnWriteArrayList<ReferenceManager.RefreshListener>();
+
+		// Get indexing configuration
+		try {
+			indexProperties = new Properties();
+			indexProperties.load(LuceneSearcherManager.class.getResourceAsStream("indexing.properties"));
+			PropertyOverrides.apply(indexProperties);
+		}
+		catch (IOException e) {
+			log.fatal(String.format("Unable to load indexing properties. Error message: %s", e.getMessage()));
+		}
+
+		open();
+	}
+
+	/**
+	 * Open the underlying SearcherManager unless already open. Failure (typically: no index built yet)
+	 * is logged; opening is retried on the next open, acquire or refresh.
+	 * @return True if a SearcherManager is available.
+	 */
+	public synchronized boolean open() {
+		if (searcherManager != null) {
+			return true;
+		}
+		try {
+			Path luceneIndexPath = Paths.get(indexProperties.getProperty("luceneIndexPath"));
+			SearcherManager newSearcherManager = new SearcherManager(FSDirectory.open(luceneIndexPath), null);
+			for (ReferenceManager.RefreshListener listener: refreshListeners) {
+				newSearcherManager.addListener(listener);
+			}
+			searcherManager = newSearcherManager;
+			return true;
+		}
+		catch (IOException e) {
+			log.error(String.format("Unable to load Lucene index reader. Lucene support disabled. Error message: %s", e.getMessage()));
+			return false;
+		}
+	}
+
+	/**
+	 * @return True if a Lucene index has been opened. Unlike {@link #acquire()}, does not retry 
+	 * opening it.
+	 */
+	public boolean isAvailable() {
+		return searcherManager != null;
+	}
+
+	/**
+	 * Acquire the current searcher. Every searcher obtained from this method must be handed back
+	 * through {@link #release(IndexSearcher)}, typically in a finally block.
+	 * @return The current IndexSearcher, or null if no Lucene index is available.
+	 * @throws IOException
+	 */
+	public IndexSearcher acquire() throws IOException {
+		if (!open()) {
+			return null;
+		}
+		return searcherManager.acquire();
+	}
+
+	/**
+	 * Release a searcher previously obtained from {@link #acquire()}. Null is silently ignored.
+	 * @param searcher The searcher to release.
+	 */
+	public void release(IndexSearcher searcher) {
+		if (searcher == null) {
+			return;
+		}
+		try {
+			searcherManager.release(searcher);
+		}
+		catch (IOException e) {
+			log.error(String.format("Unable to release Lucene searcher. Error message: %s", e.getMessage()));
+		}
+	}
+
+	/**
+	 * Reopen the searcher if the index has changed on disk. Blocks until the new searcher is in place;
+	 * searchers acquired before the refresh remain valid until released.
+	 */
+	public void refresh() {
+		if (!open()) {
+			return;
+		}
+		try {
+			searcherManager.maybeRefreshBlocking();
+			log.info("Lucene searcher refreshed.");
+		}
+		catch (IOException e) {
+			log.error(String.format("Unable to refresh Lucene searcher. Error message: %s", e.getMessage()));
+		}
+	}
+
+	/**
+	 * Register a listener to be notified whenever the shared searcher is refreshed, e.g., to
+	 * invalidate data derived from the previous index.
+	 * @param listener Listener to add.
+	 */
+	public void addRefreshListener(ReferenceManager.RefreshListener listener) {
+		synchronized (this) {
+			refreshListeners.add(listener);
+			if (searcherManager != null) {
+				searcherManager.addListener(listener);
+			}
+		}
+	}
+}
@@ -0,0 +1,59 @@
+package com.karlhammar.xdpservices.index;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.analysis.en.EnglishAnalyzer;
+import org.apache.lucene.analysis.miscellaneous.PerFieldAnalyzerWrapper;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+
+/**
+ * Analysis of the fields of the Lucene index, shared by the indexer and by searches, so that query
+ * text is analyzed the same way as the ODP text it is matched against. Analyzers are thread-safe
+ * and reuse their token stream components per thread, so these instances are shared by all
+ * requests rather than allocated per use; callers must close each TokenStream they obtain before
+ * requesting another on the same thread.
+ */
+public final class OdpAnalyzers {
+
+	/**
+	 * Natural-language fields, each holding one kind of ODP text, that are analyzed with English
+	 * stop words and stemming: the ODP name (nametext, as name holds the exact name), intent,
+	 * competency questions, scenarios and description.
+	 */
+	public static final List<String> TEXT_FIELDS = Collections.unmodifiableList(Arrays.asList("nametext", "intent", "cq", "scenario", "description"));
+
+	/**
+	 * Analyzer for indexing ODP documents and parsing queries over TEXT_FIELDS; other fields are
+	 * analyzed with the StandardAnalyzer.
+	 */
+	public static final Analyzer INDEX_ANALYZER = createIndexAnalyzer();
+
+	/**
+	 * Analyzer splitting on whitespace only, for the allterms and synonyms fields at query time.
+	 */
+	public static final Analyzer WHITESPACE_ANALYZER = new WhitespaceAnalyzer();
+
+	/**
+	 * Analyzer tokenizing search queries (and removing stop words) before they are dispatched to
+	 * the search engines.
+	 */
+	public static final Analyzer QUERY_ANALYZER = new StandardAnalyzer();
+
+	private OdpAnalyzers() {
+	}
+
+	private static Analyzer createIndexAnalyzer() {
+		Map<String,Analyzer> fieldAnalyzers = new HashMap<String,Analyzer>();
+		Analyzer englishAnalyzer = new EnglishAnalyzer();
+		for (String field: TEXT_FIELDS) {
+			fieldAnalyzers.put(field, englishAnalyzer);
+		}
+		return new PerFieldAnalyzerWrapper(new StandardAnalyzer(), fieldAnalyzers);
+	}
+}
@@ -0,0 +1,251 @@
+package com.karlhammar.xdpservices.index;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVRecord;
+
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.hash.HashingInputStream;
+import com.google.common.io.CountingOutputStream;
+import com.karlhammar.xdpservices.data.CodpDetails;
+
+/**
+ * The ODP catalogue (CSV exports from the ODP portal) that the metadata of indexed ODP files is
+ * joined with. Catalogue records are streamed from the CSV files one at a time and spilled to a
+ * temporary record file, keeping only an IRI to file offset index in memory; records are read back
+ * on demand when their ODP file is indexed. The catalogue size is therefore not bounded by heap.
+ */
+class OdpCatalogue implements Closeable {
+
+	private static final CSVFormat CSV_FORMAT = CSVFormat.EXCEL.withDelimiter(';').withSkipHeaderRecord(true).withNullString("").withHeader("OWLBuildingBlock",
+			"Name",
+			"GraphicallyRepresentedBy",
+			"HasIntent",
+			"PatternDomain",
+			"CoversRequirement",
+			"ContentODPDescription",
+			"HasConsequence",
+			"Scenario");
+
+	private final Path recordFile;
+	private final FileChannel records;
+	private final Map<String,Long> recordOffsets;
+	private final String hash;
+	private final int sourceCount;
+
+	private OdpCatalogue(Path recordFile, Map<String,Long> recordOffsets, String hash, int sourceCount) throws IOException {
+		this.recordFile = recordFile;
+		this.records = FileChannel.open(recordFile, StandardOpenOption.READ);
+		this.recordOffsets = recordOffsets;
+		this.hash = hash;
+		this.sourceCount = sourceCount;
+	}
+
+	/**
+	 * Read the ODP catalogue.
+	 * @param catalogueLocation A CSV file, or a directory whose *.csv files are read in name order (a
+	 * record for an IRI replaces any earlier one); if empty, the ODPs.csv bundled with the application.
+	 * @return The catalogue, which must be closed after use to remove its record file.
+	 * @throws IOException If a CSV file cannot be read, or a directory cannot be listed or holds no CSV files.
+	 */
+	static OdpCatalogue open(String catalogueLocation) throws IOException {
+		List<File> csvFiles = new ArrayList<File>();
+		if (!catalogueLocation.isEmpty()) {
+			File location = new File(catalogueLocation);
+			if (location.isDirectory()) {
+				File[] files = location.listFiles();
+				if (files == null) {
+					throw new IOException(String.format("Unable to list ODP catalogue directory %s.", catalogueLocation));
+				}
+				Arrays.sort(files);
+				for (File file: files) {
+					if (file.isFile() && file.getName().toLowerCase().endsWith(".csv")) {
+						csvFiles.add(file);
+					}
+				}
+				// An empty catalogue would make a full rebuild drop the metadata of all ODPs
+				if (csvFiles.isEmpty()) {
+					throw new IOException(String.format("ODP catalogue directory %s holds no CSV files.", catalogueLocation));
+				}
+			}
+			else {
+				csvFiles.add(location);
+			}
+		}
+
+		Path recordFile = Files.createTempFile("odp-catalogue", ".bin");
+		Map<String,Long> recordOffsets = new HashMap<String,Long>();
+		List<String> csvHashes = new ArrayList<String>();
+		// Offsets are counted as a long, as DataOutputStream.size() overflows at 2 GB
+		try (CountingOutputStream counter = new CountingOutputStream(new BufferedOutputStream(Files.newOutputStream(recordFile)));
+				DataOutputStream out = new DataOutputStream(counter)) {
+			if (csvFiles.isEmpty() && catalogueLocation.isEmpty()) {
+				try (InputStream csvStream = Indexer.class.getResourceAsStream("ODPs.csv")) {
+					csvHashes.add(spill(csvStream, out, counter, recordOffsets));
+				}
+			}
+			for (File csvFile: csvFiles) {
+				try (InputStream csvStream = new FileInputStream(csvFile)) {
+					csvHashes.add(spill(csvStream, out, counter, recordOffsets));
+				}
+			}
+		}
+		catch (IOException | RuntimeException e) {
+			Files.deleteIfExists(recordFile);
+			throw e;
+		}
+		
+		// A single CSV file is identified by its own hash, as in indexes built before directories were supported
+		String catalogueHash;
+		if (csvHashes.size() == 1) {
+			catalogueHash = csvHashes.get(0);
+		}
+		else {
+			Hasher catalogueHasher = Hashing.sha1().newHasher();
+			for (String csvHash: csvHashes) {
+				catalogueHasher.putString(csvHash, StandardCharsets.UTF_8);
+			}
+			catalogueHash = catalogueHasher.hash().toString();
+		}
+		return new OdpCatalogue(recordFile, recordOffsets, catalogueHash, csvHashes.size());
+	}
+
+	/**
+	 * Stream the records of one CSV file into the record file.
+	 * @return SHA-1 hash of the CSV file contents.
+	 */
+	private static String spill(InputStream csvStream, DataOutputStream out, CountingOutputStream counter, Map<String,Long> recordOffsets) throws IOException {
+		HashingInputStream hashingStream = new HashingInputStream(Hashing.sha1(), csvStream);
+		try (Reader csvReader = new InputStreamReader(hashingStream, StandardCharsets.UTF_8);
+				CSVParser parser = CSV_FORMAT.parse(csvReader)) {
+			for (CSVRecord record: parser) {
+				CodpDetails odpDetails = parseRecord(record);
+				byte[] encoded = CodpDetailsCodec.encode(odpDetails);
+				recordOffsets.put(odpDetails.getIri(), counter.getCount());
+				out.writeInt(encoded.length);
+				out.write(encoded);
+			}
+		}
+		return hashingStream.hash().toString();
+	}
+
+	private static CodpDetails parseRecord(CSVRecord record) {
+		// Add mandatory fields
+	    String iri = record.get("OWLBuildingBlock");
+	    String name = record.get("Name");
+	    CodpDetails odpDetails = new CodpDetails(iri,name);
+
+	    // Add optional fields
+	    if (record.get("GraphicallyRepresentedBy") != null) {
+	    	odpDetails.setImageIri(record.get("GraphicallyRepresentedBy"));
+	    }
+	    if (record.get("HasIntent") != null) {
+	    	odpDetails.setIntent(record.get("HasIntent"));
+	    }
+	    if (record.get("ContentODPDescription") != null) {
+	    	odpDetails.setDescription(record.get("ContentODPDescription"));
+	    }
+	    if (record.get("HasConsequence") != null) {
+	    	odpDetails.setConsequences(record.get("HasConsequence"));
+	    }
+
+	    // Add list fields (if they exist), splitting as needed
+	    if (record.get("PatternDomain") != null) {
+	    	String[] domains = record.get("PatternDomain").split("[\n\r]");
+	    	for (String domain: domains) {
+	    		odpDetails.getDomains().add(domain);
+	    	}
+	    }
+	    if (record.get("CoversRequirement") != null) {
+	    	String[] cqs = record.get("CoversRequirement").split("[\n\r]");
+	    	for (String cq: cqs) {
+	    		odpDetails.getCqs().add(cq);
+	    	}
+	    }
+	    if (record.get("Scenario") != null) {
+	    	String[] scenarios = record.get("Scenario").split("[\n\r]");
+	    	for (String scenario: scenarios) {
+	    		odpDetails.getScenarios().add(scenario);
+	    	}
+	    }
+	    return odpDetails;
+	}
+
+	/**
+	 * Look up the catalogue record of an ODP. Safe for concurrent use.
+	 * @param iri ODP building block IRI.
+	 * @return The ODP's details from the catalogue, or null if it is not in the catalogue.
+	 * @throws IOException
+	 */
+	CodpDetails get(String iri) throws IOException {
+		Long offset = recordOffsets.get(iri);
+		if (offset == null) {
+			return null;
+		}
+		ByteBuffer length = ByteBuffer.allocate(4);
+		readFully(length, offset);
+		ByteBuffer record = ByteBuffer.allocate(length.getInt(0));
+		readFully(record, offset + 4);
+		record.flip();
+		return CodpDetailsCodec.decode(record);
+	}
+
+	// Positional reads do not move the channel position, so concurrent lookups do not interfere
+	private void readFully(ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			int read = records.read(buffer, position + buffer.position());
+			if (read < 0) {
+				throw new IOException(String.format("Truncated ODP catalogue record file %s.", recordFile));
+			}
+		}
+	}
+
+	/**
+	 * @return Number of distinct ODP IRIs in the catalogue.
+	 */
+	int size() {
+		return recordOffsets.size();
+	}
+
+	/**
+	 * @return Number of CSV files the catalogue was read from.
+	 */
+	int getSourceCount() {
+		return sourceCount;
+	}
+
+	/**
+	 * @return Hash identifying the contents of the catalogue's CSV files.
+	 */
+	String getHash() {
+		return hash;
+	}
+
+	@Override
+	public void close() throws IOException {
+		records.close();
+		Files.deleteIfExists(recordFile);
+	}
+}
@@ -0,0 +1,244 @@
+package com.karlhammar.xdpservices.index;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.karlhammar.xdpservices.PropertyOverrides;
+import com.karlhammar.xdpservices.data.CodpDetails;
+
+/**
+ * Holds the display metadata (CodpDetails) of all indexed ODPs in a file written at index time
+ * (odpMetadataPath), so that metadata retrieval does not need to load stored Lucene documents. The
+ * file is a sequence of length-prefixed records (see CodpDetailsCodec); it is memory-mapped, and an
+ * in-memory IRI to offset index makes each lookup a direct read.
+ */
+public class OdpMetadataStore {
+
+	// Singleton instance.
+	public final static OdpMetadataStore INSTANCE = new OdpMetadataStore();
+
+	// Singleton properties.
+	private static Log log;
+	private static Properties indexProperties;
+	private static volatile MappedRecords mappedRecords;
+
+	/**
+	 * Private singleton constructor loading the metadata store, if it exists.
+	 */
+	private OdpMetadataStore() {
+		// Instantiate logging
+		log = LogFactory.getLog(OdpMetadataStore.class);
+
+		// Get indexing configuration
+		try {
+			indexProperties = new Properties();
+			indexProperties.load(OdpMetadataStore.class.getResourceAsStream("indexing.properties"));
+			PropertyOverrides.apply(indexProperties);
+		}
+		catch (IOException e) {
+			log.fatal(String.format("Unable to load indexing properties. Error message: %s", e.getMessage()));
+		}
+
+		reload();
+	}
+
+	/**
+	 * Look up the metadata of an ODP.
+	 * @param odpIri IRI of the ODP.
+	 * @return The ODP's details, or null if it is not in the store (or no store has been built yet).
+	 */
+	public CodpDetails get(String odpIri) {
+		MappedRecords records = mappedRecords;
+		if (records == null) {
+			return null;
+		}
+		ByteBuffer record = records.getRecord(odpIri);
+		return record == null ? null : CodpDetailsCodec.decode(record);
+	}
+
+	/**
+	 * @return True if a metadata store has been loaded.
+	 */
+	public boolean isAvailable() {
+		return mappedRecords != null;
+	}
+
+	/**
+	 * Map the metadata store file unless already mapped. Unlike {@link #reload()}, leaves a mapped
+	 * store alone, so may be called any number of times.
+	 * @return True if a metadata store is loaded.
+	 */
+	public synchronized boolean open() {
+		if (!isAvailable()) {
+			reload();
+		}
+		return isAvailable();
+	}
+
+	/**
+	 * (Re)map the metadata store file, e.g., after the index has been rebuilt. If it cannot be read,
+	 * the previously mapped store stays in use.
+	 */
+	public void reload() {
+		Path storePath = getStorePath();
+		if (!Files.exists(storePath)) {
+			log.info(String.format("No ODP metadata store at %s; it will be created by the next index build.", storePath));
+			return;
+		}
+		try (FileChannel channel = FileChannel.open(storePath, StandardOpenOption.READ)) {
+			if (channel.size() > Integer.MAX_VALUE) {
+				log.error(String.format("ODP metadata store %s exceeds 2 GB and cannot be mapped.", storePath));
+				return;
+			}
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+			// Index records by their IRI, which is the first field of each record
+			Map<String,Integer> recordOffsets = new HashMap<String,Integer>();
+			while (buffer.remaining() >= 4) {
+				int offset = buffer.position();
+				int length = buffer.getInt();
+				ByteBuffer record = buffer.slice();
+				record.limit(length);
+				recordOffsets.put(CodpDetailsCodec.decodeIri(record), offset);
+				buffer.position(offset + 4 + length);
+			}
+			buffer.rewind();
+			mappedRecords = new MappedRecords(buffer, recordOffsets);
+			log.info(String.format("Mapped ODP metadata store of %d ODPs.", recordOffsets.size()));
+		}
+		catch (IOException | RuntimeException e) {
+			log.error(String.format("Unable to load ODP metadata store. Error message: %s", e.getMessage()));
+		}
+	}
+
+	/**
+	 * Start writing a new metadata store, which replaces the current one when committed.
+	 * @return Writer for the new store.
+	 * @throws IOException
+	 */
+	StoreWriter newWriter() throws IOException {
+		return new StoreWriter(getStorePath());
+	}
+
+	private static Path getStorePath() {
+		return Paths.get(indexProperties.getProperty("odpMetadataPath"));
+	}
+
+	/**
+	 * Writes a new metadata store to a temporary file next to the current one.
+	 */
+	class StoreWriter {
+		private final Path storePath;
+		private final Path tempPath;
+		private final DataOutputStream out;
+		private final Set<String> writtenIris;
+
+		private StoreWriter(Path storePath) throws IOException {
+			this.storePath = storePath;
+			this.tempPath = Paths.get(String.format("%s.tmp", storePath));
+			this.out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tempPath)));
+			this.writtenIris = new HashSet<String>();
+		}
+
+		/**
+		 * Add the metadata of a (re-)indexed ODP.
+		 */
+		void add(CodpDetails odp) throws IOException {
+			byte[] encoded = CodpDetailsCodec.encode(odp);
+			out.writeInt(encoded.length);
+			out.write(encoded);
+			writtenIris.add(odp.getIri());
+		}
+
+		/**
+		 * Carry over the metadata of an unchanged ODP from the current store, unless it has already
+		 * been added to this one.
+		 * @return False if the ODP is not in the current store either.
+		 */
+		boolean copyFromCurrent(String odpIri) throws IOException {
+			if (writtenIris.contains(odpIri)) {
+				return true;
+			}
+			MappedRecords records = mappedRecords;
+			ByteBuffer record = records == null ? null : records.getRecord(odpIri);
+			if (record == null) {
+				return false;
+			}
+			byte[] encoded = new byte[record.remaining()];
+			record.get(encoded);
+			out.writeInt(encoded.length);
+			out.write(encoded);
+			writtenIris.add(odpIri);
+			return true;
+		}
+
+		/**
+		 * Replace the current store with the newly written one.
+		 * @return Number of ODPs in the new store.
+		 */
+		int commit() throws IOException {
+			out.close();
+			Files.move(tempPath, storePath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			return writtenIris.size();
+		}
+
+		/**
+		 * Discard the newly written store.
+		 */
+		void abort() {
+			try {
+				out.close();
+				Files.deleteIfExists(tempPath);
+			}
+			catch (IOException e) {
+				log.error(String.format("Unable to remove %s. Error message: %s", tempPath, e.getMessage()));
+			}
+		}
+	}
+
+	/**
+	 * Immutable pairing of a mapped store file and the index of its records.
+	 */
+	private static class MappedRecords {
+		private final ByteBuffer buffer;
+		private final Map<String,Integer> recordOffsets;
+
+		private MappedRecords(ByteBuffer buffer, Map<String,Integer> recordOffsets) {
+			this.buffer = buffer;
+			this.recordOffsets = recordOffsets;
+		}
+
+		/**
+		 * @return The encoded record of an ODP, or null if there is none. Each call gets its own view
+		 * of the mapped file, so concurrent lookups do not interfere.
+		 */
+		private ByteBuffer getRecord(String odpIri) {
+			Integer offset = recordOffsets.get(odpIri);
+			if (offset == null) {
+				return null;
+			}
+			ByteBuffer view = buffer.duplicate();
+			int length = view.getInt(offset);
+			view.position(offset + 4);
+			view.limit(offset + 4 + length);
+			return view.slice();
+		}
+	}
+}
@@ -0,0 +1,239 @@
+package com.karlhammar.xdpservices.index;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.util.BytesRef;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.karlhammar.xdpservices.PropertyOverrides;
+
+import edu.mit.jwi.Dictionary;
+import edu.mit.jwi.IDictionary;
+import edu.mit.jwi.item.IIndexWord;
+import edu.mit.jwi.item.IWord;
+import edu.mit.jwi.item.IWordID;
+import edu.mit.jwi.item.POS;
+
+/**
+ * WordNet synonym lookup for indexing and query expansion. Synonyms of every term in the index
+ * vocabulary are precomputed when the index is built, persisted to a tab-separated table
+ * (synonymTablePath), and held in memory; terms outside the vocabulary are looked up in WordNet
+ * once and then kept in a bounded LRU cache. Synonym expansion is thereby a hash lookup rather
+ * than a disk access to the file-backed WordNet dictionary.
+ */
+public class SynonymLookup {
+
+	// Singleton instance.
+	public final static SynonymLookup INSTANCE = new SynonymLookup();
+
+	// Singleton properties.
+	private static Log log;
+	private static Properties indexProperties;
+	private static volatile IDictionary wordnetDictionary;
+	private static volatile Map<String,List<String>> synonymTable;
+	private static LoadingCache<String,List<String>> synonymCache;
+
+	/**
+	 * Private singleton constructor opening WordNet and loading the synonym table, if one exists.
+	 */
+	private SynonymLookup() {
+		// Instantiate logging
+		log = LogFactory.getLog(SynonymLookup.class);
+		synonymTable = Collections.emptyMap();
+
+		// Get indexing configuration
+		try {
+			indexProperties = new Properties();
+			indexProperties.load(SynonymLookup.class.getResourceAsStream("indexing.properties"));
+			PropertyOverrides.apply(indexProperties);
+		}
+		catch (IOException e) {
+			log.fatal(String.format("Unable to load indexing properties. Error message: %s", e.getMessage()));
+		}
+
+		// LRU cache for terms not in the precomputed table
+		long synonymCacheSize = Long.parseLong(indexProperties.getProperty("synonymCacheSize", "10000"));
+		synonymCache = CacheBuilder.newBuilder()
+				.maximumSize(synonymCacheSize)
+				.build(new CacheLoader<String,List<String>>() {
+					@Override
+					public List<String> load(String term) {
+						return lookupWordNet(term);
+					}
+				});
+
+		openWordNet();
+		reload();
+	}
+
+	/**
+	 * Open the WordNet dictionary unless already open. On failure, synonym expansion is limited to
+	 * the synonym table until opening is retried.
+	 * @return True if WordNet is available.
+	 */
+	public synchronized boolean openWordNet() {
+		if (wordnetDictionary != null) {
+			return true;
+		}
+		try {
+			String WnDictPath = indexProperties.getProperty("wordNetPath");
+			URL url = new URL("file", null, WnDictPath);
+			IDictionary dictionary = new Dictionary(url);
+			dictionary.open();
+			wordnetDictionary = dictionary;
+			// Forget the empty synonym lists of terms looked up while WordNet was unavailable
+			synonymCache.invalidateAll();
+			return true;
+		}
+		catch (IOException ex) {
+			log.error(String.format("Unable to load WordNet. Synonym expansion disabled. Error message: %s", ex.getMessage()));
+			return false;
+		}
+	}
+
+	/**
+	 * Returns the WordNet synonyms (lemmas of the first noun sense) of a term.
+	 * @param term Term to expand; matched case-insensitively.
+	 * @return Synonyms of the term, including the term itself if it is in WordNet; an empty list
+	 * if it is not, or if WordNet is unavailable.
+	 */
+	public List<String> getSynonyms(String term) {
+		String key = term.toLowerCase(Locale.ENGLISH);
+		List<String> synonyms = synonymTable.get(key);
+		if (synonyms == null) {
+			synonyms = synonymCache.getUnchecked(key);
+		}
+		return synonyms;
+	}
+
+	/**
+	 * @return True if the WordNet dictionary is open.
+	 */
+	public boolean isWordNetAvailable() {
+		return wordnetDictionary != null;
+	}
+
+	/**
+	 * @return True if a precomputed synonym table has been written for the index.
+	 */
+	public boolean hasSynonymTable() {
+		return Files.exists(getSynonymTablePath());
+	}
+
+	/**
+	 * Precomputes the synonyms of every term of the given field in an index, persists them as the
+	 * synonym table, and swaps the new table in.
+	 * @param reader Reader over the index whose vocabulary is to be covered.
+	 * @param field Field whose terms make up the vocabulary.
+	 * @return Number of terms in the table.
+	 * @throws IOException
+	 */
+	public int writeSynonymTable(IndexReader reader, String field) throws IOException {
+		Map<String,List<String>> newTable = new HashMap<String,List<String>>();
+		Terms terms = MultiFields.getTerms(reader, field);
+		if (terms != null) {
+			TermsEnum termsEnum = terms.iterator();
+			BytesRef termBytes;
+			while ((termBytes = termsEnum.next()) != null) {
+				String term = termBytes.utf8ToString().toLowerCase(Locale.ENGLISH);
+				newTable.put(term, getSynonyms(term));
+			}
+		}
+
+		// Write to a temporary file and move it in place, so that readers never see a partial table
+		Path tablePath = getSynonymTablePath();
+		Path tempPath = Paths.get(String.format("%s.tmp", tablePath));
+		try (BufferedWriter writer = Files.newBufferedWriter(tempPath, StandardCharsets.UTF_8)) {
+			for (Map.Entry<String,List<String>> entry: newTable.entrySet()) {
+				writer.write(entry.getKey());
+				writer.write('\t');
+				writer.write(String.join(" ", entry.getValue()));
+				writer.newLine();
+			}
+		}
+		Files.move(tempPath, tablePath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+		synonymTable = newTable;
+		synonymCache.invalidateAll();
+		return newTable.size();
+	}
+
+	/**
+	 * (Re)load the persisted synonym table into memory. If it cannot be read, all terms are looked up
+	 * through the LRU cache instead.
+	 */
+	public void reload() {
+		Path tablePath = getSynonymTablePath();
+		if (!Files.exists(tablePath)) {
+			log.info(String.format("No synonym table at %s; it will be created by the next index build.", tablePath));
+			return;
+		}
+		Map<String,List<String>> newTable = new HashMap<String,List<String>>();
+		try (BufferedReader reader = Files.newBufferedReader(tablePath, StandardCharsets.UTF_8)) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				int separator = line.indexOf('\t');
+				if (separator < 0) {
+					continue;
+				}
+				String synonyms = line.substring(separator + 1);
+				List<String> synonymsList = synonyms.isEmpty() ? Collections.<String>emptyList() :
+					Collections.unmodifiableList(Arrays.asList(synonyms.split(" ")));
+				newTable.put(line.substring(0, separator), synonymsList);
+			}
+			synonymTable = newTable;
+			log.info(String.format("Loaded synonym table of %d terms.", newTable.size()));
+		}
+		catch (IOException e) {
+			log.error(String.format("Unable to load synonym table. Error message: %s", e.getMessage()));
+		}
+	}
+
+	private static Path getSynonymTablePath() {
+		return Paths.get(indexProperties.getProperty("synonymTablePath"));
+	}
+
+	private static List<String> lookupWordNet(String term) {
+		IDictionary dictionary = wordnetDictionary;
+		if (dictionary == null) {
+			return Collections.emptyList();
+		}
+		List<String> synonyms = new ArrayList<String>();
+		// JWI dictionaries are not safe for concurrent use; only table and cache misses get here
+		synchronized (dictionary) {
+			IIndexWord idxWord = dictionary.getIndexWord(term, POS.NOUN);
+			if (idxWord != null) {
+				IWordID wordID = idxWord.getWordIDs().get(0);
+				IWord word = dictionary.getWord(wordID);
+				for (IWord w: word.getSynset().getWords()) {
+					synonyms.add(w.getLemma());
+				}
+			}
+		}
+		return Collections.unmodifiableList(synonyms);
+	}
+}
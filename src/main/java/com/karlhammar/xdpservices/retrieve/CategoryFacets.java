@@ -0,0 +1,129 @@
+package com.karlhammar.xdpservices.retrieve;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexableField;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.util.Bits;
+
+import com.karlhammar.xdpservices.data.CodpDetails;
+
+/**
+ * Precomputed ODP category facets over one Lucene index reader: the sorted list of categories
+ * (unique values of the "domain" field) and, per category, the ODPs in it sorted by name. Built
+ * once per reader so that category lookups cost time proportional to the result size rather
+ * than to the size of the index.
+ */
+class CategoryFacets {
+
+	private static final String ANY_CATEGORY = "Any";
+	private static final Set<String> FIELDS_TO_LOAD = new HashSet<String>(Arrays.asList("iri", "name", "domain"));
+
+	private final IndexReader reader;
+	private final String[] categories;
+	private final Map<String,CodpDetails[]> odpsByCategory;
+
+	private CategoryFacets(IndexReader reader, String[] categories, Map<String,CodpDetails[]> odpsByCategory) {
+		this.reader = reader;
+		this.categories = categories;
+		this.odpsByCategory = odpsByCategory;
+	}
+
+	/**
+	 * Build category facets by a single pass over the (non-deleted) documents of an index reader.
+	 * @param reader Index reader to build facets for.
+	 * @return Category facets for the reader.
+	 * @throws IOException
+	 */
+	static CategoryFacets build(IndexReader reader) throws IOException {
+		Set<String> categories = new TreeSet<String>();
+		Map<String,List<CodpDetails>> odpLists = new HashMap<String,List<CodpDetails>>();
+		List<CodpDetails> allOdps = new ArrayList<CodpDetails>();
+
+		Bits liveDocs = MultiFields.getLiveDocs(reader);
+		for (int i=0; i<reader.maxDoc(); i++) {
+			if (liveDocs != null && !liveDocs.get(i)) {
+				continue;
+			}
+			Document doc = reader.document(i, FIELDS_TO_LOAD);
+			CodpDetails odp = new CodpDetails(doc.get("iri"), doc.get("name"));
+			allOdps.add(odp);
+
+			// Iterate over all instances of the "domain" field, matching categories case-insensitively
+			Set<String> odpCategoryKeys = new HashSet<String>();
+			for (IndexableField domainField: doc.getFields("domain")) {
+				String category = domainField.stringValue().trim();
+				if (!category.equalsIgnoreCase("")) {
+					categories.add(category);
+					odpCategoryKeys.add(category.toLowerCase(Locale.ENGLISH));
+				}
+			}
+			for (String categoryKey: odpCategoryKeys) {
+				List<CodpDetails> odpList = odpLists.get(categoryKey);
+				if (odpList == null) {
+					odpList = new ArrayList<CodpDetails>();
+					odpLists.put(categoryKey, odpList);
+				}
+				odpList.add(odp);
+			}
+		}
+
+		// Sort ODP lists by name and freeze them into arrays
+		Map<String,CodpDetails[]> odpsByCategory = new HashMap<String,CodpDetails[]>();
+		odpLists.put(ANY_CATEGORY.toLowerCase(Locale.ENGLISH), allOdps);
+		for (Map.Entry<String,List<CodpDetails>> entry: odpLists.entrySet()) {
+			List<CodpDetails> odpList = entry.getValue();
+			odpList.sort(new Comparator<CodpDetails>() {
+				@Override
+				public int compare(CodpDetails o1, CodpDetails o2) {
+					return o1.getName().compareTo(o2.getName());
+				}
+			});
+			odpsByCategory.put(entry.getKey(), odpList.toArray(new CodpDetails[odpList.size()]));
+		}
+
+		// Sorted categories, with the additional value "Any" in first place
+		List<String> categoriesList = new ArrayList<String>(categories);
+		categoriesList.add(0, ANY_CATEGORY);
+		return new CategoryFacets(reader, categoriesList.toArray(new String[categoriesList.size()]), odpsByCategory);
+	}
+
+	/**
+	 * @param reader An index reader.
+	 * @return True if these facets were built from the given reader, i.e., are up to date for it.
+	 */
+	boolean isBuiltFrom(IndexReader reader) {
+		return this.reader == reader;
+	}
+
+	/**
+	 * @return All categories sorted alphabetically, with the additional value "Any" in first place.
+	 */
+	String[] getCategories() {
+		return categories.clone();
+	}
+
+	/**
+	 * @param category Category to look up (case-insensitive); "Any" matches all ODPs.
+	 * @return ODPs in the category, sorted by name.
+	 */
+	CodpDetails[] getOdps(String category) {
+		CodpDetails[] odps = odpsByCategory.get(category.toLowerCase(Locale.ENGLISH));
+		if (odps == null) {
+			return new CodpDetails[0];
+		}
+		return odps.clone();
+	}
+}
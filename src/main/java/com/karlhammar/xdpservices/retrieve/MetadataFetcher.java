@@ -1,30 +1,16 @@
 package com.karlhammar.xdpservices.retrieve;
 
 import java.io.IOException;
-import java.nio.file.Path;
-import java.nio.file.Paths;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
-import java.util.HashSet;
-import java.util.List;
 import java.util.Properties;
-import java.util.Set;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.apache.lucene.analysis.Analyzer;
-import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
-import org.apache.lucene.document.Document;
-import org.apache.lucene.index.DirectoryReader;
-import org.apache.lucene.index.IndexReader;
-import org.apache.lucene.index.IndexableField;
-import org.apache.lucene.queryparser.classic.QueryParser;
 import org.apache.lucene.search.IndexSearcher;
-import org.apache.lucene.search.Query;
-import org.apache.lucene.search.ScoreDoc;
-import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.search.ReferenceManager;
+import com.karlhammar.xdpservices.PropertyOverrides;
 import com.karlhammar.xdpservices.data.CodpDetails;
+import com.karlhammar.xdpservices.index.LuceneSearcherManager;
+import com.karlhammar.xdpservices.index.OdpMetadataStore;
 import com.karlhammar.xdpservices.search.CompositeSearch;
 
 //import edu.stanford.bmir.protege.web.shared.xd.OdpDetails;
@@ -37,8 +23,7 @@ public class MetadataFetcher {
 	// Singleton properties.
 	private static Log log;
 	private static Properties searchProperties;
-	private static IndexReader luceneReader;
-	private static IndexSearcher luceneSearcher;
+	private static volatile CategoryFacets categoryFacets;
 	
 	/**
 	 * Private singleton constructor setting up all the statics that are needed. 
@@ -51,19 +36,60 @@ public class MetadataFetcher {
 		try {
 			searchProperties = new Properties();
 			searchProperties.load(CompositeSearch.class.getResourceAsStream("search.properties"));
+			PropertyOverrides.apply(searchProperties);
 		} 
 		catch (IOException e) {
 			log.fatal(String.format("Unable to load search properties. Error message: %s", e.getMessage()));
 		}
+		
+		// Rebuild category facets eagerly whenever the index is reopened, rather than on first request
+		LuceneSearcherManager.INSTANCE.addRefreshListener(new ReferenceManager.RefreshListener() {
+			@Override
+			public void beforeRefresh() {
+			}
+			
+			@Override
+			public void afterRefresh(boolean didRefresh) {
+				if (didRefresh) {
+					IndexSearcher luceneSearcher = null;
+					try {
+						luceneSearcher = LuceneSearcherManager.INSTANCE.acquire();
+						if (luceneSearcher != null) {
+							getCategoryFacets(luceneSearcher);
+						}
+					}
+					catch (IOException e) {
+						log.error(String.format("Unable to rebuild ODP category facets. Error message: %s", e.getMessage()));
+					}
+					finally {
+						LuceneSearcherManager.INSTANCE.release(luceneSearcher);
+					}
+				}
+			}
+		});
+	}
 
-		// Load Lucene reader and searcher
+	/**
+	 * Initialize the metadata service, building the category facets of the current index unless
+	 * already built for it; may be called any number of times.
+	 * @return True if the category facets are available.
+	 */
+	public boolean init() {
+		IndexSearcher luceneSearcher = null;
 		try {
-			Path luceneIndexPath = Paths.get(searchProperties.getProperty("luceneIndexPath"));
-			luceneReader = DirectoryReader.open(FSDirectory.open(luceneIndexPath));
-			luceneSearcher = new IndexSearcher(luceneReader);
-		} 
+			luceneSearcher = LuceneSearcherManager.INSTANCE.acquire();
+			if (luceneSearcher == null) {
+				return false;
+			}
+			getCategoryFacets(luceneSearcher);
+			return true;
+		}
 		catch (IOException e) {
-			log.fatal(String.format("Unable to load Lucene index reader. Error message: %s", e.getMessage()));
+			log.error(String.format("Unable to build ODP category facets. Error message: %s", e.getMessage()));
+			return false;
+		}
+		finally {
+			LuceneSearcherManager.INSTANCE.release(luceneSearcher);
 		}
 	}
 
@@ -75,114 +101,30 @@ public class MetadataFetcher {
 	 * @throws IOException 
 	 */
 	public CodpDetails[] getOdpsByCategory(String category) throws IOException {
-		List<CodpDetails> odps = new ArrayList<CodpDetails>();
-		// Iterate over all documents in index
-		for (int i=0; i<luceneReader.maxDoc(); i++) {
-			// Flag for whether this document is a hit or not
-			boolean odpMatchesCategory = false;
-			Document doc = luceneReader.document(i);
-			// Iterate over all instances of the "domain" field
-			IndexableField[] domainFields = doc.getFields("domain");
-			for (int ii=0; ii<domainFields.length; ii++) {
-				// If there is a match, set the flag
-				if (domainFields[ii].stringValue().trim().equalsIgnoreCase(category)) {
-					odpMatchesCategory = true;
-				}
-			}
-			// If the document is flagged, create a CodpDetails object and add to return list 
-			if (odpMatchesCategory || category.equalsIgnoreCase("Any")) {
-				CodpDetails odp = new CodpDetails(doc.get("iri"), doc.get("name"));
-				odps.add(odp);
-			}
+		IndexSearcher luceneSearcher = LuceneSearcherManager.INSTANCE.acquire();
+		if (luceneSearcher == null) {
+			return new CodpDetails[0];
+		}
+		try {
+			return getCategoryFacets(luceneSearcher).getOdps(category);
+		}
+		finally {
+			LuceneSearcherManager.INSTANCE.release(luceneSearcher);
 		}
-		// Sort, transform into an array and return
-		odps.sort(new Comparator<CodpDetails>() {
-			@Override
-			public int compare(CodpDetails o1, CodpDetails o2) {
-				return o1.getName().compareTo(o2.getName());
-			}
-		});
-		return odps.toArray(new CodpDetails[odps.size()]);
 	}
 	
 	/**
-	 * Retrieve a CodpDetails object by looking up all fields in the Lucene index, based on
+	 * Retrieve a CodpDetails object from the ODP metadata store written at index time, based on
 	 * an input IRI.
 	 * @param odpIri IRI of the ODP to fetch
-	 * @return A CodpDetails object with all the fields that are stored in the index set.
+	 * @return A CodpDetails object with all the metadata of the ODP, or null if it is not indexed.
 	 */
 	public CodpDetails getOdpDetails(String odpIri) {
-		Analyzer analyzer = new WhitespaceAnalyzer();
-		QueryParser queryParser = new QueryParser("iri", analyzer);
-
-		// Search Lucene index to find ODP document 
-		try {
-			// Add quotes to search string before parsing to search for exact match.
-			Query query = queryParser.parse(String.format("\"%s\"", odpIri));
-			ScoreDoc[] hits = luceneSearcher.search(query, 1).scoreDocs;
-			Document hit = luceneSearcher.doc(hits[0].doc);
-			
-			// All initial fields
-			String odpName = null;
-			String odpImage = null;
-			String odpIntent = null;
-			String odpDescription = null;
-			String odpConsequences = null;
-			List<String> odpDomains = new ArrayList<String>();
-			List<String> odpScenarios = new ArrayList<String>();
-			List<String> odpCqs = new ArrayList<String>();
-
-			// Get each field from Lucene index
-			IndexableField nameField = hit.getField("name");
-			odpName = nameField.stringValue();
-			
-			IndexableField imageField = hit.getField("image");
-			if (imageField != null) {
-				odpImage = imageField.stringValue();
-			}
-			
-			IndexableField intentField = hit.getField("intent");
-			if (intentField != null) {
-				odpIntent = intentField.stringValue();
-			}
-			
-			IndexableField descriptionField = hit.getField("description");
-			if (descriptionField != null) {
-				odpDescription = descriptionField.stringValue();
-			}
-			
-			IndexableField consequencesField = hit.getField("consequences");
-			if (consequencesField != null) {
-				odpConsequences = consequencesField.stringValue();
-			}
-			
-			IndexableField[] domainFields = hit.getFields("domain");
-			for (int i=0; i<domainFields.length; i++) {
-				String domain = domainFields[i].stringValue();
-				odpDomains.add(domain);
-			}
-			
-			IndexableField[] scenarioFields = hit.getFields("scenario");
-			for (int i=0; i<scenarioFields.length; i++) {
-				String scenario = scenarioFields[i].stringValue();
-				odpScenarios.add(scenario);
-			}
-			
-			IndexableField[] cqFields = hit.getFields("cq");
-			for (int i=0; i<cqFields.length; i++) {
-				String cq = cqFields[i].stringValue();
-				odpCqs.add(cq);
-			}
-			
-			// Create and return new CodpDetails object
-			return new CodpDetails(odpIri,odpName, odpImage, odpIntent, odpDescription, odpConsequences,
-					odpDomains, odpScenarios, odpCqs); 
-		} 
-		catch (Exception e) {
-			log.error(String.format("Unable to enrich ODP %s: search failed with message: %s", odpIri, e.getMessage()));
-			return null;
+		CodpDetails odpDetails = OdpMetadataStore.INSTANCE.get(odpIri);
+		if (odpDetails == null) {
+			log.error(String.format("Unable to fetch ODP %s: not in the ODP metadata store.", odpIri));
 		}
-		
+		return odpDetails;
 	}
 	
 	/**
@@ -193,26 +135,31 @@ public class MetadataFetcher {
 	 * @throws IOException
 	 */
 	public String[] getOdpCategories() throws IOException {
-		Set<String> odpCategories = new HashSet<String>();
-		// Iterate over all documents in index
-		for (int i=0; i<luceneReader.maxDoc(); i++) {
-			Document doc = luceneReader.document(i);
-			// Iterate over all instances of the "domain" field
-			IndexableField[] domainFields = doc.getFields("domain");
-			for (int ii=0; ii<domainFields.length; ii++) {
-				String category = domainFields[ii].stringValue().trim();
-				// If field value is non-empty, add it
-				if (!category.equalsIgnoreCase("")) {
-					odpCategories.add(category);
-				}
-			}
+		IndexSearcher luceneSearcher = LuceneSearcherManager.INSTANCE.acquire();
+		if (luceneSearcher == null) {
+			return new String[] {"Any"};
+		}
+		try {
+			return getCategoryFacets(luceneSearcher).getCategories();
+		}
+		finally {
+			LuceneSearcherManager.INSTANCE.release(luceneSearcher);
+		}
+	}
+	
+	/**
+	 * Returns the category facets of the given searcher's index reader, (re)building them if
+	 * they were built for an older reader or not at all.
+	 * @param luceneSearcher Currently acquired searcher.
+	 * @return Up to date category facets.
+	 * @throws IOException
+	 */
+	private static CategoryFacets getCategoryFacets(IndexSearcher luceneSearcher) throws IOException {
+		CategoryFacets facets = categoryFacets;
+		if (facets == null || !facets.isBuiltFrom(luceneSearcher.getIndexReader())) {
+			facets = CategoryFacets.build(luceneSearcher.getIndexReader());
+			categoryFacets = facets;
 		}
-		// Transform set into list and sort
-		List<String> odpCategoriesAsList = new ArrayList<String>();
-		odpCategoriesAsList.addAll(odpCategories);
-		Collections.sort(odpCategoriesAsList);
-		odpCategoriesAsList.add(0, "Any");
-		// Transform into an array and return
-		return odpCategoriesAsList.toArray(new String[odpCategoriesAsList.size()]);
+		return facets;
 	}
 }
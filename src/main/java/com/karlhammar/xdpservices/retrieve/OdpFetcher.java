@@ -3,24 +3,23 @@ package com.karlhammar.xdpservices.retrieve;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
-import java.nio.file.Path;
-import java.nio.file.Paths;
+import java.util.Collections;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.apache.lucene.analysis.Analyzer;
-import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
 import org.apache.lucene.document.Document;
-import org.apache.lucene.index.DirectoryReader;
-import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.IndexableField;
+import org.apache.lucene.index.Term;
 import org.apache.lucene.queryparser.classic.ParseException;
-import org.apache.lucene.queryparser.classic.QueryParser;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ReferenceManager;
 import org.apache.lucene.search.ScoreDoc;
-import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.search.TermQuery;
 import org.coode.owlapi.turtle.TurtleOntologyFormat;
 import org.semanticweb.owlapi.apibinding.OWLManager;
 import org.semanticweb.owlapi.io.FileDocumentSource;
@@ -32,6 +31,13 @@ import org.semanticweb.owlapi.model.OWLOntologyLoaderConfiguration;
 import org.semanticweb.owlapi.model.OWLOntologyManager;
 import org.semanticweb.owlapi.model.OWLOntologyStorageException;
 
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import com.karlhammar.xdpservices.PropertyOverrides;
+import com.karlhammar.xdpservices.index.LuceneSearcherManager;
 import com.karlhammar.xdpservices.search.CompositeSearch;
 
 public class OdpFetcher {
@@ -39,10 +45,12 @@ public class OdpFetcher {
 	// Singleton instance.
 	public final static OdpFetcher INSTANCE = new OdpFetcher();
 	
+	// Stored field holding the location of an ODP file.
+	private static final Set<String> PATH_FIELD = Collections.singleton("path");
+	
 	private static Log log;
 	private static Properties searchProperties;
-	private static IndexReader luceneReader;
-	private static IndexSearcher luceneSearcher;
+	private static Cache<String,String> turtleCache;
 
 	private OdpFetcher() {
 		// Instantiate logging
@@ -52,32 +60,95 @@ public class OdpFetcher {
 		try {
 			searchProperties = new Properties();
 			searchProperties.load(CompositeSearch.class.getResourceAsStream("search.properties"));
+			PropertyOverrides.apply(searchProperties);
 		} 
 		catch (IOException e) {
 			log.fatal(String.format("Unable to load search properties. Error message: %s", e.getMessage()));
 		}
 		
-		// Load Lucene statics
+		// Cache of serialized building blocks, bounded by total number of characters held
+		long turtleCacheMaxChars = Long.parseLong(searchProperties.getProperty("turtleCacheMaxChars", "20000000"));
+		turtleCache = CacheBuilder.newBuilder()
+				.maximumWeight(turtleCacheMaxChars)
+				.weigher(new Weigher<String,String>() {
+					@Override
+					public int weigh(String odpIri, String turtle) {
+						return odpIri.length() + turtle.length();
+					}
+				})
+				.build();
+		
+		// Building blocks may have changed on disk when the index is rebuilt
+		LuceneSearcherManager.INSTANCE.addRefreshListener(new ReferenceManager.RefreshListener() {
+			@Override
+			public void beforeRefresh() {
+			}
+			
+			@Override
+			public void afterRefresh(boolean didRefresh) {
+				if (didRefresh) {
+					turtleCache.invalidateAll();
+				}
+			}
+		});
+	}
+	
+	/**
+	 * Initialize the building block service: its configuration and cache are set up by the singleton
+	 * constructor, on first access, so this does nothing more and may be called any number of times.
+	 * @return True if the Lucene index, which locates the ODP files, is available.
+	 */
+	public boolean init() {
+		return LuceneSearcherManager.INSTANCE.isAvailable();
+	}
+	
+	/**
+	 * Returns the OWL building block of an ODP serialized as Turtle. Serializations are cached 
+	 * until the index is next refreshed, so that popular ODPs are not re-parsed on every request.
+	 * @param odpIri IRI of the ODP to fetch.
+	 * @return Turtle serialization of the ODP building block.
+	 */
+	public static String getOdpBuildingBlockTurtle(final String odpIri) throws OWLOntologyCreationException, OWLOntologyStorageException, ParseException, IOException {
+		log.info(String.format("%s body requested",odpIri));
 		try {
-			Path luceneIndexPath = Paths.get(searchProperties.getProperty("luceneIndexPath"));
-			luceneReader = DirectoryReader.open(FSDirectory.open(luceneIndexPath));
-			luceneSearcher = new IndexSearcher(luceneReader);
-		} 
-		catch (IOException e) {
-			log.fatal(String.format("Unable to load Lucene index reader. Error message: %s", e.getMessage()));
+			// Concurrent requests for the same uncached ODP wait for a single serialization
+			return turtleCache.get(odpIri, new Callable<String>() {
+				@Override
+				public String call() throws Exception {
+					return serializeOdpBuildingBlock(odpIri);
+				}
+			});
+		}
+		catch (ExecutionException | UncheckedExecutionException e) {
+			Throwable cause = e.getCause();
+			Throwables.propagateIfInstanceOf(cause, OWLOntologyCreationException.class);
+			Throwables.propagateIfInstanceOf(cause, OWLOntologyStorageException.class);
+			Throwables.propagateIfInstanceOf(cause, ParseException.class);
+			Throwables.propagateIfInstanceOf(cause, IOException.class);
+			throw Throwables.propagate(cause);
 		}
 	}
 	
-	public static String getOdpBuildingBlockTurtle(String odpIri) throws OWLOntologyCreationException, OWLOntologyStorageException, ParseException, IOException {
-		log.info(String.format("%s body requested",odpIri));
-		// Configure search
-		Analyzer analyzer = new WhitespaceAnalyzer();
-		QueryParser queryParser = new QueryParser("iri", analyzer);
-		Query query = queryParser.parse(String.format("\"%s\"", odpIri));
+	private static String serializeOdpBuildingBlock(String odpIri) throws OWLOntologyCreationException, OWLOntologyStorageException, ParseException, IOException {
+		// Exact match on the untokenized IRI field
+		Query query = new TermQuery(new Term("iri", odpIri));
 		
 		// Execute search
-		ScoreDoc[] hits = luceneSearcher.search(query, 1).scoreDocs;
-		Document hit = luceneSearcher.doc(hits[0].doc);
+		IndexSearcher luceneSearcher = LuceneSearcherManager.INSTANCE.acquire();
+		if (luceneSearcher == null) {
+			throw new IOException("No Lucene index available.");
+		}
+		Document hit;
+		try {
+			ScoreDoc[] hits = luceneSearcher.search(query, 1).scoreDocs;
+			if (hits.length == 0) {
+				throw new IOException(String.format("ODP %s not found in Lucene index.", odpIri));
+			}
+			hit = luceneSearcher.doc(hits[0].doc, PATH_FIELD);
+		}
+		finally {
+			LuceneSearcherManager.INSTANCE.release(luceneSearcher);
+		}
 		
 		// Return path on disk from search result
 		IndexableField nameField = hit.getField("path");
@@ -2,50 +2,112 @@ package com.karlhammar.xdpservices.search;
 
 import java.io.IOException;
 import java.io.StringReader;
-import java.nio.file.Path;
-import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
-import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.Objects;
 import java.util.Map;
 import java.util.Properties;
-import org.apache.commons.lang3.ArrayUtils;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.TokenStream;
-import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
-import org.apache.lucene.analysis.standard.StandardAnalyzer;
 import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
 import org.apache.lucene.document.Document;
-import org.apache.lucene.index.DirectoryReader;
 import org.apache.lucene.index.IndexReader;
-import org.apache.lucene.index.IndexableField;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.queryparser.classic.MultiFieldQueryParser;
 import org.apache.lucene.queryparser.classic.QueryParser;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ReferenceManager;
 import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TermQuery;
 import org.apache.lucene.search.TopDocs;
-import org.apache.lucene.store.FSDirectory;
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.karlhammar.xdpservices.PropertyOverrides;
+import com.karlhammar.xdpservices.XdpMetrics;
 import com.karlhammar.xdpservices.data.CodpDetails;
 import com.karlhammar.xdpservices.data.OdpSearchFilterConfiguration;
 import com.karlhammar.xdpservices.data.OdpSearchResult;
 import com.karlhammar.xdpservices.index.Indexer;
+import com.karlhammar.xdpservices.index.LuceneSearcherManager;
+import com.karlhammar.xdpservices.index.OdpAnalyzers;
+import com.karlhammar.xdpservices.index.SynonymLookup;
 
-import pitt.search.semanticvectors.FlagConfig;
 import pitt.search.semanticvectors.SearchResult;
 
 public class CompositeSearch {
 
 	public final static CompositeSearch INSTANCE = new CompositeSearch();
+	
+	// Number of results returned when no limit is given.
+	public static final int DEFAULT_RESULT_LIMIT = 25;
+
+	// Stored fields needed to enrich search results.
+	private static final Set<String> ENRICHMENT_FIELDS = new HashSet<String>(Arrays.asList("iri", "name"));
+	private static final Set<String> IRI_FIELD = Collections.singleton("iri");
+	
+	// Fields queried in multi-field Lucene search mode, and their boosts.
+	private static final Map<String,Float> MULTI_FIELD_BOOSTS = ImmutableMap.of("nametext", 5f, "cq", 4f, "intent", 3f, "scenario", 2f, "description", 1f);
 
 	private static Log log;
-	private static IndexReader luceneReader;
-	private static IndexSearcher luceneSearcher;
-	private static Boolean useLucene;
 	private static Properties searchProperties;
+	private static ExecutorService searchExecutor;
+	private static long searchTimeoutMillis;
+	private static int maxResultWindow;
+	private static int candidateDepthStep;
+	private static Cache<SearchCacheKey,OdpSearchResult[]> resultCache;
+	// Incremented on invalidation, such that searches started before it do not cache their results
+	private static final AtomicLong resultCacheGeneration = new AtomicLong();
+	private static long filterCacheSize;
+	private static volatile FilterMatches filterMatches;
+	private static boolean multiFieldLuceneSearch;
+	private static ResultFusion resultFusion;
+	
+	// Search pipeline metrics, per stage
+	private static Timer searchTimer;
+	private static Timer tokenizationTimer;
+	private static Timer synonymExpansionTimer;
+	private static Timer filteringTimer;
+	private static Timer semanticVectorsFilteringTimer;
+	private static Timer semanticVectorsTimer;
+	private static Timer luceneTimer;
+	private static Timer mergeTimer;
+	private static Timer enrichmentTimer;
+	private static Histogram resultCountHistogram;
+	private static Histogram semanticVectorsResultCountHistogram;
+	private static Histogram luceneResultCountHistogram;
+	private static Meter resultCacheHitMeter;
+	private static Counter tokenizationErrorCounter;
+	private static Counter luceneErrorCounter;
+	private static Counter enrichmentErrorCounter;
 	
 	// Private constructor to defeat external instantiation (access via INSTANCE singleton)
 	private CompositeSearch() {
@@ -56,121 +118,168 @@ public class CompositeSearch {
 		try {
 			searchProperties = new Properties();
 			searchProperties.load(CompositeSearch.class.getResourceAsStream("search.properties"));
+			PropertyOverrides.apply(searchProperties);
 		} 
 		catch (IOException e) {
 			log.fatal(String.format("Unable to load search properties. Error message: %s", e.getMessage()));
 		}
 		
-		// Load Lucene reader
+		// Bounded pool running the search engines of each query concurrently; if it is saturated, 
+		// engines are rejected (and reported as degraded) rather than queued without bound or run on
+		// the request thread, where they would not be bound by the latency budget
+		int searchThreads = Integer.parseInt(searchProperties.getProperty("searchThreads", "8"));
+		searchTimeoutMillis = Long.parseLong(searchProperties.getProperty("searchTimeoutMillis", "2000"));
+		maxResultWindow = Integer.parseInt(searchProperties.getProperty("maxResultWindow", "200"));
+		candidateDepthStep = Math.max(1, Integer.parseInt(searchProperties.getProperty("candidateDepthStep", "50")));
+		searchExecutor = new ThreadPoolExecutor(searchThreads, searchThreads, 0L, TimeUnit.MILLISECONDS, 
+				new ArrayBlockingQueue<Runnable>(searchThreads * 8), 
+				new ThreadFactoryBuilder().setNameFormat("composite-search-%d").setDaemon(true).build(), 
+				new ThreadPoolExecutor.AbortPolicy());
+		
+		// Lucene search over the single allterms field, or over the individual text fields of the ODPs
+		multiFieldLuceneSearch = "multifield".equals(searchProperties.getProperty("luceneSearchMode", "allterms").trim());
+		
+		// Fusion of the Semantic Vectors and Lucene results, in that order
+		String fusionStrategyName = searchProperties.getProperty("fusionStrategy", "sum").trim();
+		ResultFusion.Strategy fusionStrategy = ResultFusion.Strategy.SUM;
 		try {
-			Path luceneIndexPath = Paths.get(searchProperties.getProperty("luceneIndexPath"));
-			luceneReader = DirectoryReader.open(FSDirectory.open(luceneIndexPath));
-			luceneSearcher = new IndexSearcher(luceneReader);
-			useLucene = true;
-		} 
-		catch (IOException e) {
-			log.error(String.format("Unable to load Lucene index reader. Lucene support disabled. Error message: %s", e.getMessage()));
-			useLucene = false;
+			fusionStrategy = ResultFusion.Strategy.valueOf(fusionStrategyName.toUpperCase(Locale.ENGLISH));
+		}
+		catch (IllegalArgumentException e) {
+			// A configuration error must not make the search service unusable
+			log.error(String.format("Unknown fusion strategy %s; using sum instead.", fusionStrategyName));
 		}
+		double[] fusionWeights = {Double.parseDouble(searchProperties.getProperty("fusionWeightSemanticVectors", "1.0")), 
+				Double.parseDouble(searchProperties.getProperty("fusionWeightLucene", "1.0"))};
+		resultFusion = new ResultFusion(fusionStrategy, fusionWeights, Integer.parseInt(searchProperties.getProperty("rrfK", "60")));
+		
+		// Cache of complete (non-degraded) search results, for repeated queries
+		resultCache = CacheBuilder.newBuilder()
+				.maximumSize(Long.parseLong(searchProperties.getProperty("resultCacheSize", "1000")))
+				.expireAfterWrite(Long.parseLong(searchProperties.getProperty("resultCacheTtlSeconds", "3600")), TimeUnit.SECONDS)
+				.recordStats()
+				.build();
+		
+		// Per index reader, cache of the IRIs matching each search filter
+		filterCacheSize = Long.parseLong(searchProperties.getProperty("filterCacheSize", "100"));
+		
+		// Metrics, reported through the actuator /metrics endpoint
+		MetricRegistry metrics = XdpMetrics.REGISTRY;
+		searchTimer = metrics.timer("search.time");
+		tokenizationTimer = metrics.timer("search.stage.tokenization");
+		synonymExpansionTimer = metrics.timer("search.stage.synonymExpansion");
+		// Building the filter query, once per search, and matching it against the index for the
+		// Semantic Vectors engine, on the engine thread, are timed separately
+		filteringTimer = metrics.timer("search.stage.filtering");
+		semanticVectorsFilteringTimer = metrics.timer("search.stage.filtering.semanticvectors");
+		semanticVectorsTimer = metrics.timer("search.stage.semanticvectors");
+		luceneTimer = metrics.timer("search.stage.lucene");
+		mergeTimer = metrics.timer("search.stage.merge");
+		enrichmentTimer = metrics.timer("search.stage.enrichment");
+		resultCountHistogram = metrics.histogram("search.results");
+		semanticVectorsResultCountHistogram = metrics.histogram("search.results.semanticvectors");
+		luceneResultCountHistogram = metrics.histogram("search.results.lucene");
+		resultCacheHitMeter = metrics.meter("search.resultCache.hits");
+		tokenizationErrorCounter = metrics.counter("search.errors.tokenization");
+		luceneErrorCounter = metrics.counter("search.errors.lucene");
+		enrichmentErrorCounter = metrics.counter("search.errors.enrichment");
+		metrics.register("search.resultCache.hitRate", new Gauge<Double>() {
+			@Override
+			public Double getValue() {
+				return resultCache.stats().hitRate();
+			}
+		});
+		
+		// Cached results are stale once the index has been rebuilt or reopened
+		LuceneSearcherManager.INSTANCE.addRefreshListener(new ReferenceManager.RefreshListener() {
+			@Override
+			public void beforeRefresh() {
+			}
+			
+			@Override
+			public void afterRefresh(boolean didRefresh) {
+				if (didRefresh) {
+					invalidateResultCache();
+				}
+			}
+		});
+	}
+	
+	/**
+	 * Initialize the search service: its configuration, engine pool, caches and metrics are set up
+	 * by the singleton constructor, on first access, so this does nothing more and may be called
+	 * any number of times.
+	 * @return True if the index of at least one search engine is available.
+	 */
+	public boolean init() {
+		return LuceneSearcherManager.INSTANCE.isAvailable() || SemanticVectorIndex.INSTANCE.isLoaded();
+	}
+	
+	/**
+	 * Discard all cached search results, e.g., after the Semantic Vectors stores have been reloaded.
+	 */
+	public void invalidateResultCache() {
+		resultCacheGeneration.incrementAndGet();
+		resultCache.invalidateAll();
+	}
+	
+	/**
+	 * @return Hit/miss statistics of the search result cache.
+	 */
+	public CacheStats getResultCacheStats() {
+		return resultCache.stats();
+	}
+	
+	/**
+	 * @return Number of entries in the search result cache.
+	 */
+	public long getResultCacheSize() {
+		return resultCache.size();
 	}
 	
 	/**
 	 * Execute Semantic Vectors Search (https://code.google.com/p/semanticvectors/).
-	 * Requires the existence of term and document vectors named as per the (method-internal) 
-	 * configuration array.
+	 * Runs against the memory-resident term and document vectors held by SemanticVectorIndex.
 	 * Note that the OdpSearchResults returned by this method may contain incomplete ODPs, 
 	 * e.g. need to be enriched in order to fill null fields.
 	 * @param queryTerms Array of terms to search for.
+	 * @param filterQuery Query matching the ODPs that may be returned, or null if unfiltered.
+	 * @param numResults Number of top-scoring results to return.
 	 * @return List of ODP search results with confidences.
 	 */
-	private static List<OdpSearchResult> SemanticVectorSearch(List<String> queryTerms) {
-		try {
-			String vectorBasePath = searchProperties.getProperty("semanticVectorsPath");
-			String queryVectorPath = String.format("%s/termvectors.bin", vectorBasePath);
-			String searchVectorPath = String.format("%s/docvectors.bin", vectorBasePath);
-			//
-			String[] configurationArray = {"-contentsfields","allterms","-docidfield", "iri","-queryvectorfile",queryVectorPath,"-searchvectorfile", searchVectorPath, "-searchtype", "SUM", "-numsearchresults", "25"};
-			String[] queryTermsArray = queryTerms.toArray(new String[queryTerms.size()]);
-			String[] queryArray = ArrayUtils.addAll(configurationArray, queryTermsArray);
-			
-			FlagConfig config = FlagConfig.getFlagConfig(queryArray);
-			List<SearchResult> results = pitt.search.semanticvectors.Search.runSearch(config);
-			List<OdpSearchResult> resultsList = new ArrayList<OdpSearchResult>();
-			if (results.size() > 0) {
-			      for (SearchResult result: results) {
-			    	  String suggestedOdpPath = result.getObjectVector().getObject().toString();
-			    	  Double suggestedOdpScore = result.getScore();
-			    	  OdpSearchResult entry = new OdpSearchResult(new CodpDetails(suggestedOdpPath,""),suggestedOdpScore);
-			    	  resultsList.add(entry);
-			      }
+	private static List<OdpSearchResult> SemanticVectorSearch(List<String> queryTerms, Query filterQuery, int numResults) {
+		Set<String> allowedIris = null;
+		if (filterQuery != null) {
+			Timer.Context filteringTime = semanticVectorsFilteringTimer.time();
+			try {
+				allowedIris = getMatchingIris(filterQuery);
 			}
-			return ReIndexTo10(resultsList);
-		}
-		catch (IllegalArgumentException ex) {
-			// This happens if the incoming query terms, after filtering for junk,
-			// aren't actually reasonable terms in the english language at all.
-			// If so, return an empty result.
-			return new ArrayList<OdpSearchResult>();
-		}
-	}
-	
-	
-	/**
-	 * Merges and sorts multiple result lists (e.g., coming from different search methods). 
-	 * @param resultLists Arbitrary number of result lists.
-	 * @return One merged/sorted result list.
-	 */
-	@SafeVarargs
-	private static List<OdpSearchResult> mergeAndSortResults(List<OdpSearchResult>... resultLists) {
-		
-		// Concatenate the generated result lists.
-		List<OdpSearchResult> concatenatedResultsList = new ArrayList<OdpSearchResult>();
-		for (int i=0; i < resultLists.length; i++) {
-			concatenatedResultsList.addAll(resultLists[i]);
-		}
-
-		
-		// Merge scores using Map
-		// Note that the map is string,double - since equality comparison of OdpDetails would be a nuisance, given
-		// the many fields that this data type has.
-		Map<String,Double> mergedResultsMap = new HashMap<String,Double>();
-		for (OdpSearchResult entry: concatenatedResultsList) {
-			if (!mergedResultsMap.containsKey(entry.getOdp().getIri())) {
-				mergedResultsMap.put(entry.getOdp().getIri(), entry.getConfidence());
+			finally {
+				filteringTime.stop();
 			}
-			else {
-				Double updatedScore = mergedResultsMap.get(entry.getOdp().getIri()) + entry.getConfidence();
-				mergedResultsMap.put(entry.getOdp().getIri(), updatedScore);
+			if (allowedIris.isEmpty()) {
+				return new ArrayList<OdpSearchResult>();
 			}
 		}
-		
-		// Turn said Map back into a list of OdpSearchResult, creating new OdpDetails object with only
-		// URI field set in the process.
-		List<OdpSearchResult> mergedResultsList = new ArrayList<OdpSearchResult>();
-		for (Map.Entry<String, Double> entry : mergedResultsMap.entrySet()) {
-			CodpDetails odp = new CodpDetails(entry.getKey(), null);
-		    Double confidence = entry.getValue();
-		    OdpSearchResult newEntry = new OdpSearchResult(odp,confidence);
-		    mergedResultsList.add(newEntry);
+		List<SearchResult> results = SemanticVectorIndex.INSTANCE.search(queryTerms, numResults, allowedIris);
+		List<OdpSearchResult> resultsList = new ArrayList<OdpSearchResult>();
+		if (results.size() > 0) {
+		      for (SearchResult result: results) {
+		    	  String suggestedOdpPath = result.getObjectVector().getObject().toString();
+		    	  Double suggestedOdpScore = result.getScore();
+		    	  OdpSearchResult entry = new OdpSearchResult(new CodpDetails(suggestedOdpPath,""),suggestedOdpScore);
+		    	  resultsList.add(entry);
+		      }
 		}
-		
-		// Sort the merged list by scores, then reverse to get highest-scoring first
-		mergedResultsList.sort(new Comparator<OdpSearchResult>() {
-			@Override
-			public int compare(OdpSearchResult osr1, OdpSearchResult osr2) {
-				return osr1.getConfidence().compareTo(osr2.getConfidence());
-			}
-		});
-		Collections.reverse(mergedResultsList);
-		
-		return mergedResultsList;
+		return resultsList;
 	}
 	
 	
 	/**
 	 * Enrich the metadata of ODPs in the input list of search results; search components may for efficiency reasons
 	 * return search results where one or more ODP fields are null; this is where those fields are updated from
-	 * the Lucene index.
+	 * the Lucene index. All ODPs are resolved together, using one query over the iri field per batch of results, 
+	 * rather than with one query per result.
 	 * 
 	 * Note: for the time being we only enrich by the name field. More may be added in future.
 	 * 
@@ -178,39 +287,55 @@ public class CompositeSearch {
 	 * @return An enriched list with no ODPs having any null fields.
 	 */
 	private static List<OdpSearchResult> enrichResults(List<OdpSearchResult> inputList) {
-		if (!useLucene) {
+		IndexSearcher luceneSearcher;
+		try {
+			luceneSearcher = LuceneSearcherManager.INSTANCE.acquire();
+		}
+		catch (IOException e) {
+			log.error(String.format("Unable to acquire Lucene searcher. Error message: %s", e.getMessage()));
+			luceneSearcher = null;
+		}
+		if (luceneSearcher == null) {
 			// If Lucene inactivated, return immediately.
 			return inputList;
 		}
 		else {
-			// Set up stuff that will be needed
+			// Look up the names of all ODPs, in batches that fit within the boolean clause limit
+			Map<String,String> odpNames = new HashMap<String,String>();
+			try {
+				int batchSize = BooleanQuery.getMaxClauseCount();
+				for (int batchStart = 0; batchStart < inputList.size(); batchStart += batchSize) {
+					List<OdpSearchResult> batch = inputList.subList(batchStart, Math.min(batchStart + batchSize, inputList.size()));
+					BooleanQuery.Builder queryBuilder = new BooleanQuery.Builder();
+					for (OdpSearchResult result: batch) {
+						queryBuilder.add(new TermQuery(new Term("iri", result.getOdp().getIri())), BooleanClause.Occur.SHOULD);
+					}
+					ScoreDoc[] hits = luceneSearcher.search(queryBuilder.build(), batch.size()).scoreDocs;
+					for (ScoreDoc hit: hits) {
+						Document doc = luceneSearcher.doc(hit.doc, ENRICHMENT_FIELDS);
+						odpNames.put(doc.get("iri"), doc.get("name"));
+					}
+				}
+			}
+			catch (IOException e) {
+				log.error(String.format("Unable to enrich ODPs: search failed with message: %s", e.getMessage()));
+				enrichmentErrorCounter.inc();
+			}
+			finally {
+				LuceneSearcherManager.INSTANCE.release(luceneSearcher);
+			}
+			
+			// Attach names, keeping the order of the input list
 			List<OdpSearchResult> outputList = new ArrayList<OdpSearchResult>();
-			Analyzer analyzer = new WhitespaceAnalyzer();
-			QueryParser queryParser = new QueryParser("iri", analyzer);
-
-			// Iterate over input list
 			for (OdpSearchResult result: inputList) {
-
-				// Get details for each result list entry
-				String odpUri = result.getOdp().getIri().toString();
-				Double confidence = result.getConfidence();
-
-				// Search Lucene index to find ODP document 
-				try {
-					// Add quotes to search string before parsing to search for exact match.
-					Query query = queryParser.parse(String.format("\"%s\"", odpUri));
-					ScoreDoc[] hits = luceneSearcher.search(query, 1).scoreDocs;
-					Document hit = luceneSearcher.doc(hits[0].doc);
-
-					IndexableField nameField = hit.getField("name");
-					String odpName = nameField.stringValue();
-					OdpSearchResult newResult = new OdpSearchResult(new CodpDetails(odpUri,odpName), confidence);
-					outputList.add(newResult);
-				} 
-				catch (Exception e) {
-					log.error(String.format("Unable to enrich ODP %s: search failed with message: %s", odpUri, e.getMessage()));
+				String odpUri = result.getOdp().getIri();
+				String odpName = odpNames.get(odpUri);
+				if (odpName == null) {
+					log.error(String.format("Unable to enrich ODP %s: not found in Lucene index.", odpUri));
+					enrichmentErrorCounter.inc();
 					continue;
 				}
+				outputList.add(new OdpSearchResult(new CodpDetails(odpUri,odpName), result.getConfidence()));
 			}
 			return outputList;
 		}
@@ -218,14 +343,90 @@ public class CompositeSearch {
 	
 	
 	/**
-	 * Filters such ODPs from the results set that are not consistent with the required search filter.
-	 * @param inputList
-	 * @param filterConfiguration
-	 * @return
+	 * Translates a search filter configuration into a query over the filter fields written by the 
+	 * Indexer (category, size, profile, strategy, mapping), such that filtering is done by the 
+	 * search engines themselves rather than by post-filtering their top results.
+	 * @param filterConfiguration Configuration of which results to exclude; may be null.
+	 * @return Filter query, or null if the configuration does not exclude anything.
 	 */
-	private static List<OdpSearchResult> filterResults(List<OdpSearchResult> inputList, OdpSearchFilterConfiguration filterConfiguration) {
-		// TODO: implement this.
-		return inputList;
+	private static Query buildFilterQuery(OdpSearchFilterConfiguration filterConfiguration) {
+		if (filterConfiguration == null) {
+			return null;
+		}
+		BooleanQuery.Builder filterBuilder = new BooleanQuery.Builder();
+		boolean hasClauses = false;
+		hasClauses |= addFilterClause(filterBuilder, "category", filterConfiguration.getCategory());
+		hasClauses |= addFilterClause(filterBuilder, "size", filterConfiguration.getSize());
+		hasClauses |= addFilterClause(filterBuilder, "profile", filterConfiguration.getProfile());
+		hasClauses |= addFilterClause(filterBuilder, "strategy", filterConfiguration.getStrategy());
+		if (Boolean.TRUE.equals(filterConfiguration.getDolceMappingRequired())) {
+			hasClauses |= addFilterClause(filterBuilder, "mapping", "dolce");
+		}
+		if (Boolean.TRUE.equals(filterConfiguration.getSchemaOrgMappingRequired())) {
+			hasClauses |= addFilterClause(filterBuilder, "mapping", "schemaorg");
+		}
+		if (Boolean.TRUE.equals(filterConfiguration.getDbPediaMappingRequired())) {
+			hasClauses |= addFilterClause(filterBuilder, "mapping", "dbpedia");
+		}
+		return hasClauses ? filterBuilder.build() : null;
+	}
+	
+	/**
+	 * Adds a non-scoring clause requiring the given field value, unless the value is empty or "Any".
+	 * @return True if a clause was added.
+	 */
+	private static boolean addFilterClause(BooleanQuery.Builder filterBuilder, String field, String value) {
+		if (value == null) {
+			return false;
+		}
+		String normalizedValue = Indexer.normalizeFilterValue(value);
+		if (normalizedValue.isEmpty() || normalizedValue.equals("any")) {
+			return false;
+		}
+		filterBuilder.add(new TermQuery(new Term(field, normalizedValue)), BooleanClause.Occur.FILTER);
+		return true;
+	}
+	
+	/**
+	 * Collects the IRIs of all ODPs matching a filter query, i.e., the candidate set for engines 
+	 * that do not search the Lucene index themselves. Filters take few distinct values, so the
+	 * IRIs matching each are cached per index reader rather than collected on every query.
+	 * @param filterQuery Filter query.
+	 * @return IRIs of matching ODPs (unmodifiable); empty if none match or no Lucene index is available.
+	 */
+	private static Set<String> getMatchingIris(final Query filterQuery) {
+		IndexSearcher luceneSearcher = null;
+		try {
+			luceneSearcher = LuceneSearcherManager.INSTANCE.acquire();
+			if (luceneSearcher == null) {
+				return Collections.emptySet();
+			}
+			FilterMatches matches = filterMatches;
+			if (matches == null || matches.reader != luceneSearcher.getIndexReader()) {
+				matches = new FilterMatches(luceneSearcher.getIndexReader());
+				filterMatches = matches;
+			}
+			final IndexSearcher searcher = luceneSearcher;
+			return matches.matchingIris.get(filterQuery, new Callable<Set<String>>() {
+				@Override
+				public Set<String> call() throws IOException {
+					Set<String> matchingIris = new HashSet<String>();
+					int maxDoc = Math.max(1, searcher.getIndexReader().maxDoc());
+					ScoreDoc[] hits = searcher.search(filterQuery, maxDoc).scoreDocs;
+					for (ScoreDoc hit: hits) {
+						matchingIris.add(searcher.doc(hit.doc, IRI_FIELD).get("iri"));
+					}
+					return Collections.unmodifiableSet(matchingIris);
+				}
+			});
+		}
+		catch (IOException | ExecutionException e) {
+			log.error(String.format("Unable to resolve search filter. Error message: %s", e.getMessage()));
+			return Collections.emptySet();
+		}
+		finally {
+			LuceneSearcherManager.INSTANCE.release(luceneSearcher);
+		}
 	}
 	
 	/**
@@ -262,45 +463,233 @@ public class CompositeSearch {
 	 * Execute a query over all search engine methods.
 	 * @param queryString The input query string.
 	 * @param filterConfiguration Configuration of which results to exclude.
-	 * @return List of ODP search results.
+	 * @return List of the DEFAULT_RESULT_LIMIT best ODP search results.
 	 */
 	public OdpSearchResult[] runSearch(String queryString, OdpSearchFilterConfiguration filterConfiguration) {
+		return search(queryString, filterConfiguration).getResults();
+	}
+	
+	/**
+	 * Execute a query over all search engine methods, returning the first page of results.
+	 * @param queryString The input query string.
+	 * @param filterConfiguration Configuration of which results to exclude.
+	 * @return The DEFAULT_RESULT_LIMIT best ODP search results, and which engines (if any) missed
+	 * the latency budget.
+	 */
+	public SearchResponse search(String queryString, OdpSearchFilterConfiguration filterConfiguration) {
+		return search(queryString, filterConfiguration, 0, DEFAULT_RESULT_LIMIT);
+	}
+	
+	/**
+	 * @return Upper bound on offset + limit of a search, as configured by maxResultWindow; deeper
+	 * pages would require each engine to score too many candidates.
+	 */
+	public int getMaxResultWindow() {
+		return maxResultWindow;
+	}
+	
+	/**
+	 * Execute a query over all search engine methods. The engines run concurrently, sharing a 
+	 * latency budget of searchTimeoutMillis; an engine that has not answered within the budget is
+	 * abandoned, its (empty) results merged with those of the others, and it is reported as degraded.
+	 * 
+	 * Each engine returns as many candidates as offset + limit, rounded up to a multiple of
+	 * candidateDepthStep (at most maxResultWindow), so that only about the needed top-k is scored,
+	 * while the pages within such a step are cut from the same fused ranking and consecutive pages
+	 * there neither repeat nor skip ODPs. Only the requested page of the fused results is enriched.
+	 * @param queryString The input query string.
+	 * @param filterConfiguration Configuration of which results to exclude.
+	 * @param offset Number of best results to skip.
+	 * @param limit Maximum number of results to return.
+	 * @return ODP search results, and which engines (if any) missed the latency budget.
+	 * @throws IllegalArgumentException If offset is negative, limit is not positive, or offset + limit
+	 * exceeds the maximum result window.
+	 */
+	public SearchResponse search(String queryString, OdpSearchFilterConfiguration filterConfiguration, int offset, int limit) {
+		if (offset < 0 || limit < 1 || (long) offset + limit > maxResultWindow) {
+			throw new IllegalArgumentException(String.format("Invalid result page: offset %d, limit %d (offset + limit may be at most %d).", offset, limit, maxResultWindow));
+		}
+		Timer.Context searchTime = searchTimer.time();
+		try {
+			SearchResponse response = executeSearch(queryString, filterConfiguration, offset, limit);
+			resultCountHistogram.update(response.getResults().length);
+			return response;
+		}
+		finally {
+			searchTime.stop();
+		}
+	}
+	
+	private SearchResponse executeSearch(String queryString, OdpSearchFilterConfiguration filterConfiguration, final int offset, final int limit) {
+		
+		// Results of a search started before the cache is invalidated (e.g., by a reindex) are not cached
+		long cacheGeneration = resultCacheGeneration.get();
 		
 		// Prepare query for further processing
-		String normalizedQueryString = queryString.toLowerCase().replace("?", "");
+		final String normalizedQueryString = queryString.toLowerCase().replace("?", "");
 		
 		// Tokenize query and remove stop words
-		List<String> queryTerms = new ArrayList<String>();
-		List<String> synonymTerms = new ArrayList<String>();
+		final List<String> queryTerms = new ArrayList<String>();
+		Timer.Context tokenizationTime = tokenizationTimer.time();
 		try {
-			Analyzer analyzer = new StandardAnalyzer();
-	    	TokenStream tokenStream = analyzer.tokenStream(null,new StringReader(normalizedQueryString));
-	    	tokenStream.reset();
-	    	while(tokenStream.incrementToken()) {
-	    		String term = tokenStream.getAttribute(CharTermAttribute.class).toString();
-	    		queryTerms.add(term);
-	    		synonymTerms.add(term);
-	    		synonymTerms.addAll(Indexer.getSynonyms(term));
-	    	}
-	    	analyzer.close();
+			try (TokenStream tokenStream = OdpAnalyzers.QUERY_ANALYZER.tokenStream(null, new StringReader(normalizedQueryString))) {
+				CharTermAttribute termAttribute = tokenStream.addAttribute(CharTermAttribute.class);
+				tokenStream.reset();
+				while(tokenStream.incrementToken()) {
+					queryTerms.add(termAttribute.toString());
+				}
+				tokenStream.end();
+			}
 		}
 		catch (IOException e) {
 			log.error(String.format("Unable to tokenize input querystring. Error message: %s", e.getMessage()));
+			tokenizationErrorCounter.inc();
+		}
+		finally {
+			tokenizationTime.stop();
+		}
+		
+		// Filtering is applied within each search engine
+		Timer.Context filteringTime = filteringTimer.time();
+		final Query filterQuery = buildFilterQuery(filterConfiguration);
+		filteringTime.stop();
+		
+		// Queries with the same engine inputs (the query string parsed by Lucene, the terms searched
+		// by Semantic Vectors, and the effective filter) have the same results
+		SearchCacheKey cacheKey = new SearchCacheKey(normalizedQueryString, queryTerms, filterQuery, offset, limit);
+		OdpSearchResult[] cachedResults = resultCache.getIfPresent(cacheKey);
+		if (cachedResults != null) {
+			resultCacheHitMeter.mark();
+			return new SearchResponse(cachedResults.clone(), new ArrayList<String>());
+		}
+		
+		// Expand query terms with synonyms (used by synonym search only, which is deactivated)
+		List<String> synonymTerms = new ArrayList<String>();
+		Timer.Context synonymExpansionTime = synonymExpansionTimer.time();
+		for (String term: queryTerms) {
+			synonymTerms.add(term);
+			synonymTerms.addAll(SynonymLookup.INSTANCE.getSynonyms(term));
 		}
+		synonymExpansionTime.stop();
 		
-		// Execute searches across all search engine methods
-		List<OdpSearchResult> SemanticVectorResults = SemanticVectorSearch(queryTerms);
-		List<OdpSearchResult> LuceneResults = LuceneSearch(normalizedQueryString);
+		// Execute searches across all search engine methods, concurrently, each retrieving the same
+		// number of candidates for all pages within a step of candidateDepthStep
+		final int numCandidates = getCandidateDepth(offset, limit);
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(searchTimeoutMillis);
+		Future<List<OdpSearchResult>> SemanticVectorFuture = submitEngine("semanticvectors", new Callable<List<OdpSearchResult>>() {
+			@Override
+			public List<OdpSearchResult> call() {
+				Timer.Context semanticVectorsTime = semanticVectorsTimer.time();
+				try {
+					return SemanticVectorSearch(queryTerms, filterQuery, numCandidates);
+				}
+				finally {
+					semanticVectorsTime.stop();
+				}
+			}
+		});
+		Future<List<OdpSearchResult>> LuceneFuture = submitEngine("lucene", new Callable<List<OdpSearchResult>>() {
+			@Override
+			public List<OdpSearchResult> call() {
+				Timer.Context luceneTime = luceneTimer.time();
+				try {
+					return LuceneSearch(normalizedQueryString, filterQuery, numCandidates);
+				}
+				finally {
+					luceneTime.stop();
+				}
+			}
+		});
 		// Deactivated due to poor results
 		// List<OdpSearchResult> SynonymSearchResults = SynonymSearch(normalizedQueryString);
+		List<String> degradedEngines = new ArrayList<String>();
+		List<OdpSearchResult> SemanticVectorResults = awaitResults("semanticvectors", SemanticVectorFuture, deadline, degradedEngines);
+		List<OdpSearchResult> LuceneResults = awaitResults("lucene", LuceneFuture, deadline, degradedEngines);
+		semanticVectorsResultCountHistogram.update(SemanticVectorResults.size());
+		luceneResultCountHistogram.update(LuceneResults.size());
 		
-		// Merge, enrich, and filter results
-		List<OdpSearchResult> mergedResults = mergeAndSortResults(SemanticVectorResults,LuceneResults);
-		List<OdpSearchResult> enrichedResults = enrichResults(ReIndexTo10(mergedResults));
-		List<OdpSearchResult> filteredResults = filterResults(enrichedResults, filterConfiguration);
+		// Fuse results, and enrich only the requested page
+		Timer.Context mergeTime = mergeTimer.time();
+		List<List<OdpSearchResult>> engineResults = new ArrayList<List<OdpSearchResult>>();
+		engineResults.add(SemanticVectorResults);
+		engineResults.add(LuceneResults);
+		List<OdpSearchResult> fusedResults = resultFusion.fuse(engineResults, offset + limit);
+		List<OdpSearchResult> pageResults = fusedResults.subList(Math.min(offset, fusedResults.size()), fusedResults.size());
+		mergeTime.stop();
+		Timer.Context enrichmentTime = enrichmentTimer.time();
+		List<OdpSearchResult> enrichedResults = enrichResults(pageResults);
+		enrichmentTime.stop();
 		
-		OdpSearchResult[] resultsArray = filteredResults.toArray(new OdpSearchResult[filteredResults.size()]);
-		return resultsArray;
+		OdpSearchResult[] resultsArray = enrichedResults.toArray(new OdpSearchResult[enrichedResults.size()]);
+		if (degradedEngines.isEmpty() && resultCacheGeneration.get() == cacheGeneration) {
+			resultCache.put(cacheKey, resultsArray.clone());
+			if (resultCacheGeneration.get() != cacheGeneration) {
+				// Invalidated while putting; the results may be from the previous index
+				resultCache.invalidate(cacheKey);
+			}
+		}
+		return new SearchResponse(resultsArray, degradedEngines);
+	}
+	
+	/**
+	 * @return Number of candidates each engine returns for a page: offset + limit rounded up to a
+	 * multiple of candidateDepthStep, and at most maxResultWindow.
+	 */
+	private static int getCandidateDepth(int offset, int limit) {
+		long depth = ((long) offset + limit + candidateDepthStep - 1) / candidateDepthStep * candidateDepthStep;
+		return (int) Math.min(depth, maxResultWindow);
+	}
+	
+	/**
+	 * Submit a search engine to the search pool.
+	 * @param engineName Name of the engine.
+	 * @param engine The engine's search.
+	 * @return The engine's pending results, or null if the pool is saturated.
+	 */
+	private static Future<List<OdpSearchResult>> submitEngine(String engineName, Callable<List<OdpSearchResult>> engine) {
+		try {
+			return searchExecutor.submit(engine);
+		}
+		catch (RejectedExecutionException e) {
+			log.warn(String.format("Search pool saturated; search engine %s is skipped.", engineName));
+			XdpMetrics.REGISTRY.counter(String.format("search.rejections.%s", engineName)).inc();
+			return null;
+		}
+	}
+	
+	/**
+	 * Wait for the results of one search engine until the shared deadline. Engines that time out
+	 * are cancelled without interrupting them, as interrupting Lucene during I/O may close the
+	 * index files of non-mmap directories.
+	 * @param engineName Name of the engine, reported if it is degraded.
+	 * @param engineResults Pending results of the engine, or null if it was rejected.
+	 * @param deadline System.nanoTime() by which the engine must have answered.
+	 * @param degradedEngines List that the engine name is added to if it times out or fails.
+	 * @return The engine's results, or an empty list if it timed out or failed.
+	 */
+	private static List<OdpSearchResult> awaitResults(String engineName, Future<List<OdpSearchResult>> engineResults, long deadline, List<String> degradedEngines) {
+		if (engineResults == null) {
+			degradedEngines.add(engineName);
+			return new ArrayList<OdpSearchResult>();
+		}
+		try {
+			return engineResults.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+		}
+		catch (TimeoutException e) {
+			log.warn(String.format("Search engine %s exceeded latency budget of %d ms; its results are omitted.", engineName, searchTimeoutMillis));
+			XdpMetrics.REGISTRY.counter(String.format("search.timeouts.%s", engineName)).inc();
+			engineResults.cancel(false);
+		}
+		catch (ExecutionException e) {
+			log.error(String.format("Search engine %s failed. Error message: %s", engineName, e.getCause().getMessage()));
+			XdpMetrics.REGISTRY.counter(String.format("search.errors.%s", engineName)).inc();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			engineResults.cancel(false);
+		}
+		degradedEngines.add(engineName);
+		return new ArrayList<OdpSearchResult>();
 	}
 
 	/**
@@ -313,27 +702,28 @@ public class CompositeSearch {
 	@SuppressWarnings("unused")
 	private List<OdpSearchResult> SynonymSearch(String queryString) {
 		List<OdpSearchResult> resultsList = new ArrayList<OdpSearchResult>();
-		if (!useLucene) {
-			return resultsList;
-		}
-		else {
-			try {
-				WhitespaceAnalyzer analyzer = new WhitespaceAnalyzer();
-				Query q = new QueryParser("synonyms", analyzer).parse(queryString);
+		IndexSearcher luceneSearcher = null;
+		try {
+			luceneSearcher = LuceneSearcherManager.INSTANCE.acquire();
+			if (luceneSearcher != null) {
+				Query q = new QueryParser("synonyms", OdpAnalyzers.WHITESPACE_ANALYZER).parse(queryString);
 				TopDocs docs = luceneSearcher.search(q, 25);
 				ScoreDoc[] hits = docs.scoreDocs;
 				for (int i=0; i<hits.length; ++i) {
 					ScoreDoc sdoc = hits[i];
 				    int docId = sdoc.doc;
 				    float score = sdoc.score;
-				    Document doc = luceneSearcher.doc(docId);
+				    Document doc = luceneSearcher.doc(docId, ENRICHMENT_FIELDS);
 				    OdpSearchResult entry = new OdpSearchResult(new CodpDetails(doc.getField("iri").stringValue(),doc.getField("name").toString()), new Double(score));
 					resultsList.add(entry);
 				}
-			} 
-			catch (Exception e) {
-				log.error(String.format("Unable to execute Lucene synonym search with WhiteSpace analyzer. Error message: %s", e.getMessage()));	
 			}
+		} 
+		catch (Exception e) {
+			log.error(String.format("Unable to execute Lucene synonym search with WhiteSpace analyzer. Error message: %s", e.getMessage()));	
+		}
+		finally {
+			LuceneSearcherManager.INSTANCE.release(luceneSearcher);
 		}
 		// Reindex list to make compatible with 0-1 matching scale, and return
 		return ReIndexTo10(resultsList);
@@ -343,35 +733,107 @@ public class CompositeSearch {
 	/**
 	 * Executes a standard Lucene query using the WhiteSpace-analyser over the allterms-field
 	 * (e.g., no fancy language-specific grammars or stemming or stop word removal, simply compare
-	 * the query terms to all terms in the ODPs)
+	 * the query terms to all terms in the ODPs). In multi-field mode (luceneSearchMode=multifield),
+	 * the query is instead matched against the name, CQ, intent, scenario and description fields, 
+	 * analyzed as at indexing time, with matches in more specific fields boosted; the per-field 
+	 * BM25 scores are summed.
 	 * @param queryString
+	 * @param filterQuery Query matching the ODPs that may be returned, or null if unfiltered.
+	 * @param numResults Number of top-scoring results to return.
 	 * @return
 	 */
-	private List<OdpSearchResult> LuceneSearch(String queryString) {
+	private List<OdpSearchResult> LuceneSearch(String queryString, Query filterQuery, int numResults) {
 		List<OdpSearchResult> resultsList = new ArrayList<OdpSearchResult>();
-		if (!useLucene) {
-			return resultsList;
-		}
-		else {
-			try {
-				WhitespaceAnalyzer analyzer = new WhitespaceAnalyzer();
-				Query q = new QueryParser("allterms", analyzer).parse(queryString);
-				TopDocs docs = luceneSearcher.search(q, 25);
+		IndexSearcher luceneSearcher = null;
+		try {
+			luceneSearcher = LuceneSearcherManager.INSTANCE.acquire();
+			if (luceneSearcher != null) {
+				Query q;
+				if (multiFieldLuceneSearch) {
+					String[] fields = MULTI_FIELD_BOOSTS.keySet().toArray(new String[MULTI_FIELD_BOOSTS.size()]);
+					q = new MultiFieldQueryParser(fields, OdpAnalyzers.INDEX_ANALYZER, MULTI_FIELD_BOOSTS).parse(queryString);
+				}
+				else {
+					q = new QueryParser("allterms", OdpAnalyzers.WHITESPACE_ANALYZER).parse(queryString);
+				}
+				if (filterQuery != null) {
+					q = new BooleanQuery.Builder()
+							.add(q, BooleanClause.Occur.MUST)
+							.add(filterQuery, BooleanClause.Occur.FILTER)
+							.build();
+				}
+				TopDocs docs = luceneSearcher.search(q, numResults);
 				ScoreDoc[] hits = docs.scoreDocs;
 				for (int i=0; i<hits.length; ++i) {
 					ScoreDoc sdoc = hits[i];
 				    int docId = sdoc.doc;
 				    float score = sdoc.score;
-				    Document doc = luceneSearcher.doc(docId);
-				    OdpSearchResult entry = new OdpSearchResult(new CodpDetails(doc.getField("iri").stringValue(),doc.getField("name").stringValue()), new Double(score));
+				    // Names are looked up for the requested page only, during enrichment
+				    Document doc = luceneSearcher.doc(docId, IRI_FIELD);
+				    OdpSearchResult entry = new OdpSearchResult(new CodpDetails(doc.getField("iri").stringValue(),""), new Double(score));
 					resultsList.add(entry);
 				}
-			} 
-			catch (Exception e) {
-				log.error(String.format("Unable to execute Lucene search with WhiteSpace analyzer. Error message: %s", e.getMessage()));	
 			}
+		} 
+		catch (Exception e) {
+			log.error(String.format("Unable to execute Lucene search. Error message: %s", e.getMessage()));	
+			luceneErrorCounter.inc();
+		}
+		finally {
+			LuceneSearcherManager.INSTANCE.release(luceneSearcher);
+		}
+		return resultsList;
+	}
+	
+	/**
+	 * IRIs matching each search filter, over one index reader.
+	 */
+	private static class FilterMatches {
+		private final IndexReader reader;
+		private final Cache<Query,Set<String>> matchingIris;
+		
+		private FilterMatches(IndexReader reader) {
+			this.reader = reader;
+			this.matchingIris = CacheBuilder.newBuilder().maximumSize(filterCacheSize).build();
+		}
+	}
+	
+	/**
+	 * Result cache key: the normalized query string (which Lucene parses, such that, e.g., stop
+	 * words and operators matter), the analyzed query terms, the filter query derived from the
+	 * search filter configuration, which implements value equality, and the requested page.
+	 */
+	private static class SearchCacheKey {
+		private final String queryString;
+		private final List<String> queryTerms;
+		private final Query filterQuery;
+		private final int offset;
+		private final int limit;
+		
+		private SearchCacheKey(String queryString, List<String> queryTerms, Query filterQuery, int offset, int limit) {
+			this.queryString = queryString;
+			this.queryTerms = new ArrayList<String>(queryTerms);
+			this.filterQuery = filterQuery;
+			this.offset = offset;
+			this.limit = limit;
+		}
+		
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj) {
+				return true;
+			}
+			if (!(obj instanceof SearchCacheKey)) {
+				return false;
+			}
+			SearchCacheKey other = (SearchCacheKey) obj;
+			return queryString.equals(other.queryString) && queryTerms.equals(other.queryTerms) && Objects.equals(filterQuery, other.filterQuery)
+					&& offset == other.offset && limit == other.limit;
+		}
+		
+		@Override
+		public int hashCode() {
+			return Objects.hash(queryString, queryTerms, filterQuery, offset, limit);
 		}
-		// Reindex list to make compatible with 0-1 matching scale, and return
-		return ReIndexTo10(resultsList);
 	}
 }
\ No newline at end of file
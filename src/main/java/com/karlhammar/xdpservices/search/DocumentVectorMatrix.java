@@ -0,0 +1,406 @@
+package com.karlhammar.xdpservices.search;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import pitt.search.semanticvectors.ObjectVector;
+import pitt.search.semanticvectors.VectorStoreRAM;
+import pitt.search.semanticvectors.vectors.RealVector;
+
+/**
+ * Real-valued document vectors, normalized to unit length, held as one contiguous row-major
+ * matrix rather than as a map of vector objects, such that scoring a query against all documents
+ * is a sequential pass over a primitive array. Rows are either 32-bit floats or 8-bit integers
+ * with a scale per row (symmetric quantization), the latter taking a quarter of the memory; the
+ * int8 scan quantizes the query too and accumulates integer dot products, a loop that the JIT
+ * compiles to SIMD instructions. Scans over many documents are split across cores.
+ *
+ * Rows are sorted by document identifier, so the row of a document is found by binary search
+ * and the same vectors always give the same row order (which the HNSW graph relies on).
+ * Immutable, and therefore safe for concurrent searches.
+ */
+class DocumentVectorMatrix {
+
+	private final String[] ids;
+	private final int dimension;
+	// Exactly one of the two is set: float rows, or int8 rows with their scales
+	private final float[] floatRows;
+	private final byte[] quantizedRows;
+	private final float[] rowScales;
+
+	private DocumentVectorMatrix(String[] ids, int dimension, float[] floatRows, byte[] quantizedRows, float[] rowScales) {
+		this.ids = ids;
+		this.dimension = dimension;
+		this.floatRows = floatRows;
+		this.quantizedRows = quantizedRows;
+		this.rowScales = rowScales;
+	}
+
+	/**
+	 * Copy the vectors of a store of real-valued document vectors into a matrix.
+	 * @param docVectors Document vector store.
+	 * @param quantize True for int8 rows, false for float rows.
+	 * @return The matrix.
+	 */
+	static DocumentVectorMatrix fromStore(VectorStoreRAM docVectors, boolean quantize) {
+		Map<String,float[]> vectorsById = new HashMap<String,float[]>(docVectors.getNumVectors() * 2);
+		Enumeration<ObjectVector> allVectors = docVectors.getAllVectors();
+		while (allVectors.hasMoreElements()) {
+			ObjectVector docVector = allVectors.nextElement();
+			vectorsById.put(docVector.getObject().toString(), ((RealVector) docVector.getVector()).getCoordinates());
+		}
+		return fromVectors(vectorsById, quantize);
+	}
+
+	/**
+	 * Copy real-valued document vectors, all of the same dimension, into a matrix.
+	 * @param vectorsById Vectors by document identifier; not modified.
+	 * @param quantize True for int8 rows, false for float rows.
+	 * @return The matrix.
+	 */
+	static DocumentVectorMatrix fromVectors(Map<String,float[]> vectorsById, boolean quantize) {
+		List<String> sortedIds = new ArrayList<String>(vectorsById.keySet());
+		Collections.sort(sortedIds);
+		String[] ids = sortedIds.toArray(new String[sortedIds.size()]);
+		int dimension = ids.length > 0 ? vectorsById.get(ids[0]).length : 0;
+
+		float[] floatRows = new float[ids.length * dimension];
+		for (int row=0; row<ids.length; row++) {
+			float[] vector = vectorsById.get(ids[row]);
+			int offset = row * dimension;
+			System.arraycopy(vector, 0, floatRows, offset, dimension);
+			normalize(floatRows, offset, dimension);
+		}
+		if (!quantize) {
+			return new DocumentVectorMatrix(ids, dimension, floatRows, null, null);
+		}
+		byte[] quantizedRows = new byte[floatRows.length];
+		float[] rowScales = new float[ids.length];
+		for (int row=0; row<ids.length; row++) {
+			rowScales[row] = quantize(floatRows, row * dimension, dimension, quantizedRows);
+		}
+		return new DocumentVectorMatrix(ids, dimension, null, quantizedRows, rowScales);
+	}
+
+	/**
+	 * Quantize a vector to int8 such that its largest absolute coordinate becomes 127.
+	 * @return The scale, i.e., the value of 1 in the quantized vector.
+	 */
+	private static float quantize(float[] vectors, int offset, int dimension, byte[] quantized) {
+		float maxAbs = 0;
+		for (int i=0; i<dimension; i++) {
+			maxAbs = Math.max(maxAbs, Math.abs(vectors[offset + i]));
+		}
+		if (maxAbs == 0) {
+			return 0;
+		}
+		float scale = maxAbs / 127;
+		for (int i=0; i<dimension; i++) {
+			quantized[offset + i] = (byte) Math.round(vectors[offset + i] / scale);
+		}
+		return scale;
+	}
+
+	private static void normalize(float[] vectors, int offset, int dimension) {
+		double norm = 0;
+		for (int i=0; i<dimension; i++) {
+			norm += vectors[offset + i] * vectors[offset + i];
+		}
+		if (norm > 0) {
+			float scale = (float) (1 / Math.sqrt(norm));
+			for (int i=0; i<dimension; i++) {
+				vectors[offset + i] *= scale;
+			}
+		}
+	}
+
+	/**
+	 * @return Number of documents.
+	 */
+	int size() {
+		return ids.length;
+	}
+
+	/**
+	 * @return True if rows are int8 quantized.
+	 */
+	boolean isQuantized() {
+		return quantizedRows != null;
+	}
+
+	/**
+	 * @return Approximate memory taken by the vectors, in bytes.
+	 */
+	long getVectorBytes() {
+		return isQuantized() ? quantizedRows.length + 4L * rowScales.length : 4L * floatRows.length;
+	}
+
+	/**
+	 * @return Identifier of the document of a row.
+	 */
+	String getId(int row) {
+		return ids[row];
+	}
+
+	/**
+	 * @return Row of a document, or -1 if there is no vector for the document.
+	 */
+	int getRow(String id) {
+		int row = Arrays.binarySearch(ids, id);
+		return row >= 0 ? row : -1;
+	}
+
+	/**
+	 * @return Copy of the (normalized, and if quantized, approximate) vector of a row.
+	 */
+	float[] getVector(int row) {
+		float[] vector = new float[dimension];
+		int offset = row * dimension;
+		for (int i=0; i<dimension; i++) {
+			vector[i] = isQuantized() ? quantizedRows[offset + i] * rowScales[row] : floatRows[offset + i];
+		}
+		return vector;
+	}
+
+	/**
+	 * @param query Query vector, normalized.
+	 * @return Cosine similarity of the query and a row.
+	 */
+	float similarity(float[] query, int row) {
+		int offset = row * dimension;
+		if (isQuantized()) {
+			float dotProduct = 0;
+			for (int i=0; i<dimension; i++) {
+				dotProduct += query[i] * quantizedRows[offset + i];
+			}
+			return dotProduct * rowScales[row];
+		}
+		return dotProduct(query, floatRows, offset, dimension);
+	}
+
+	/**
+	 * @return Cosine similarity of two rows.
+	 */
+	float similarity(int row, int otherRow) {
+		if (isQuantized()) {
+			int offset = row * dimension;
+			int otherOffset = otherRow * dimension;
+			int dotProduct = 0;
+			for (int i=0; i<dimension; i++) {
+				dotProduct += quantizedRows[offset + i] * quantizedRows[otherOffset + i];
+			}
+			return dotProduct * rowScales[row] * rowScales[otherRow];
+		}
+		int offset = row * dimension;
+		float dotProduct = 0;
+		for (int i=0, otherOffset=otherRow*dimension; i<dimension; i++) {
+			dotProduct += floatRows[offset + i] * floatRows[otherOffset + i];
+		}
+		return dotProduct;
+	}
+
+	/**
+	 * Dot product with four independent partial sums, which lets the processor overlap the
+	 * additions instead of waiting for each to complete before starting the next.
+	 */
+	private static float dotProduct(float[] query, float[] rows, int offset, int dimension) {
+		float sum0 = 0, sum1 = 0, sum2 = 0, sum3 = 0;
+		int i = 0;
+		for (; i<dimension-3; i+=4) {
+			sum0 += query[i] * rows[offset + i];
+			sum1 += query[i + 1] * rows[offset + i + 1];
+			sum2 += query[i + 2] * rows[offset + i + 2];
+			sum3 += query[i + 3] * rows[offset + i + 3];
+		}
+		for (; i<dimension; i++) {
+			sum0 += query[i] * rows[offset + i];
+		}
+		return (sum0 + sum1) + (sum2 + sum3);
+	}
+
+	/**
+	 * Exact top-k search over all rows, or over a candidate set of rows.
+	 * @param query Query vector, normalized.
+	 * @param k Number of results.
+	 * @param candidateRows Rows that may be returned, or null for all rows.
+	 * @param parallelMinRows Smallest number of rows to score that is split across cores.
+	 * @return The rows of the k most similar documents, most similar first. When quantized, the
+	 * ranking is by the similarity to the quantized query.
+	 */
+	int[] search(float[] query, int k, int[] candidateRows, int parallelMinRows) {
+		int rowCount = candidateRows != null ? candidateRows.length : ids.length;
+		parallelMinRows = Math.max(2, parallelMinRows);
+		if (k <= 0 || rowCount == 0) {
+			return new int[0];
+		}
+		ScanTask scan;
+		if (isQuantized()) {
+			byte[] quantizedQuery = new byte[dimension];
+			quantize(query, 0, dimension, quantizedQuery);
+			scan = new ScanTask(null, quantizedQuery, k, candidateRows, 0, rowCount, parallelMinRows);
+		}
+		else {
+			scan = new ScanTask(query, null, k, candidateRows, 0, rowCount, parallelMinRows);
+		}
+		TopRows topRows = rowCount >= parallelMinRows ? ForkJoinPool.commonPool().invoke(scan) : scan.compute();
+		return topRows.toSortedRows();
+	}
+
+	/**
+	 * Scores a range of rows, or of candidate rows, halving the range over forked subtasks while it
+	 * is large enough to be worth scoring in parallel.
+	 */
+	private final class ScanTask extends RecursiveTask<TopRows> {
+		private static final long serialVersionUID = 1L;
+
+		private final float[] query;
+		private final byte[] quantizedQuery;
+		private final int k;
+		private final int[] candidateRows;
+		private final int from;
+		private final int to;
+		private final int parallelMinRows;
+
+		private ScanTask(float[] query, byte[] quantizedQuery, int k, int[] candidateRows, int from, int to, int parallelMinRows) {
+			this.query = query;
+			this.quantizedQuery = quantizedQuery;
+			this.k = k;
+			this.candidateRows = candidateRows;
+			this.from = from;
+			this.to = to;
+			this.parallelMinRows = parallelMinRows;
+		}
+
+		@Override
+		protected TopRows compute() {
+			if (to - from >= parallelMinRows) {
+				int middle = (from + to) >>> 1;
+				ScanTask lowerHalf = new ScanTask(query, quantizedQuery, k, candidateRows, from, middle, parallelMinRows);
+				ScanTask upperHalf = new ScanTask(query, quantizedQuery, k, candidateRows, middle, to, parallelMinRows);
+				lowerHalf.fork();
+				TopRows topRows = upperHalf.compute();
+				topRows.addAll(lowerHalf.join());
+				return topRows;
+			}
+			TopRows topRows = new TopRows(k);
+			for (int i=from; i<to; i++) {
+				int row = candidateRows != null ? candidateRows[i] : i;
+				topRows.offer(row, quantizedQuery != null ? quantizedDotProduct(row) : dotProduct(query, floatRows, row * dimension, dimension));
+			}
+			return topRows;
+		}
+
+		/**
+		 * Integer dot product of the quantized query and a row, scaled by the row scale; the
+		 * query scale is the same for all rows, so it does not affect the ranking and is left out.
+		 */
+		private float quantizedDotProduct(int row) {
+			int offset = row * dimension;
+			int dotProduct = 0;
+			for (int i=0; i<dimension; i++) {
+				dotProduct += quantizedQuery[i] * quantizedRows[offset + i];
+			}
+			return dotProduct * rowScales[row];
+		}
+	}
+
+	/**
+	 * Bounded min-heap of the best scoring rows, whose root is the worst row kept so far.
+	 */
+	private static final class TopRows {
+		private final int[] rows;
+		private final float[] scores;
+		private int size;
+
+		private TopRows(int k) {
+			this.rows = new int[k];
+			this.scores = new float[k];
+		}
+
+		private void offer(int row, float score) {
+			if (size < rows.length) {
+				int index = size++;
+				while (index > 0) {
+					int parent = (index - 1) / 2;
+					if (isWorse(parent, row, score)) {
+						break;
+					}
+					rows[index] = rows[parent];
+					scores[index] = scores[parent];
+					index = parent;
+				}
+				rows[index] = row;
+				scores[index] = score;
+			}
+			else if (isWorse(0, row, score)) {
+				int index = 0;
+				while (true) {
+					int child = 2 * index + 1;
+					if (child >= size) {
+						break;
+					}
+					if (child + 1 < size && isWorse(child + 1, rows[child], scores[child])) {
+						child++;
+					}
+					if (!isWorse(child, row, score)) {
+						break;
+					}
+					rows[index] = rows[child];
+					scores[index] = scores[child];
+					index = child;
+				}
+				rows[index] = row;
+				scores[index] = score;
+			}
+		}
+
+		/**
+		 * Order of the heap, and of the results: by score, and on equal scores by row, the higher
+		 * row being worse. Ties at the k-th result are thus resolved the same way whatever the order
+		 * in which rows are offered, so that a scan split across cores gives the same results.
+		 * @return True if the row at an index in the heap is worse than the given row.
+		 */
+		private boolean isWorse(int index, int row, float score) {
+			int byScore = Float.compare(scores[index], score);
+			return byScore < 0 || (byScore == 0 && rows[index] > row);
+		}
+
+		private void addAll(TopRows other) {
+			for (int i=0; i<other.size; i++) {
+				offer(other.rows[i], other.scores[i]);
+			}
+		}
+
+		/**
+		 * @return The rows, best first.
+		 */
+		private int[] toSortedRows() {
+			long[] order = new long[size];
+			for (int i=0; i<size; i++) {
+				// Sort on score, descending, then row, ascending, packed in one long
+				order[i] = ((long) sortableBits(scores[i]) << 32) | (~rows[i] & 0xFFFFFFFFL);
+			}
+			Arrays.sort(order);
+			int[] sortedRows = new int[size];
+			for (int i=0; i<size; i++) {
+				sortedRows[i] = ~(int) order[size - 1 - i];
+			}
+			return sortedRows;
+		}
+
+		/**
+		 * @return Bits of a float that order as signed ints in the same order as the floats.
+		 */
+		private static int sortableBits(float value) {
+			int bits = Float.floatToIntBits(value);
+			return bits ^ ((bits >> 31) & 0x7FFFFFFF);
+		}
+	}
+}
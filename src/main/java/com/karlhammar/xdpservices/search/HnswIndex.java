@@ -0,0 +1,461 @@
+package com.karlhammar.xdpservices.search;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Random;
+
+/**
+ * Hierarchical navigable small world (HNSW) graph over normalized document vectors, for approximate
+ * top-k search by cosine similarity in logarithmic rather than linear time (Malkov and Yashunin,
+ * 2016). Every vector is a node on layer 0, and on each higher layer with exponentially decreasing
+ * probability; a search descends greedily through the sparse upper layers and then explores layer 0
+ * from the node found there, keeping the efSearch best candidates. Nodes are the rows of a
+ * {@link DocumentVectorMatrix}, which holds the vectors; the graph itself only holds links.
+ *
+ * Built once per index build, and immutable (and therefore safe for concurrent searches) after that.
+ */
+class HnswIndex {
+
+	private static final int FILE_FORMAT_VERSION = 2;
+
+	private final DocumentVectorMatrix vectors;
+	private final int maxConnections;
+	// links[node][layer] holds the neighbours of a node on a layer, in its first linkCounts[node][layer] elements
+	private final int[][][] links;
+	private final int[][] linkCounts;
+	private int entryPoint;
+	private int maxLayer;
+
+	private HnswIndex(DocumentVectorMatrix vectors, int maxConnections, int[][][] links, int[][] linkCounts, int entryPoint, int maxLayer) {
+		this.vectors = vectors;
+		this.maxConnections = maxConnections;
+		this.links = links;
+		this.linkCounts = linkCounts;
+		this.entryPoint = entryPoint;
+		this.maxLayer = maxLayer;
+	}
+
+	/**
+	 * Build an index.
+	 * @param vectors Document vectors; unquantized vectors give a better graph.
+	 * @param maxConnections Maximum number of neighbours per node on the upper layers (twice as many
+	 * on layer 0); higher values improve recall at the cost of memory and build time.
+	 * @param efConstruction Number of candidates considered when linking a new node.
+	 * @param seed Random seed for the layer assignment; the same input and seed give the same index.
+	 * @return The index.
+	 */
+	static HnswIndex build(DocumentVectorMatrix vectors, int maxConnections, int efConstruction, long seed) {
+		int count = vectors.size();
+
+		// Draw the top layer of each node from an exponential distribution
+		Random random = new Random(seed);
+		double levelMultiplier = 1 / Math.log(Math.max(2, maxConnections));
+		int[][][] links = new int[count][][];
+		int[][] linkCounts = new int[count][];
+		for (int node=0; node<count; node++) {
+			int nodeLayer = (int) (-Math.log(1 - random.nextDouble()) * levelMultiplier);
+			links[node] = new int[nodeLayer + 1][];
+			linkCounts[node] = new int[nodeLayer + 1];
+			for (int layer=0; layer<=nodeLayer; layer++) {
+				links[node][layer] = new int[getMaxLinks(layer, maxConnections) + 1];
+			}
+		}
+
+		HnswIndex index = new HnswIndex(vectors, maxConnections, links, linkCounts, -1, -1);
+		for (int node=0; node<count; node++) {
+			index.insert(node, efConstruction);
+		}
+		return index;
+	}
+
+	private static int getMaxLinks(int layer, int maxConnections) {
+		return layer == 0 ? 2 * maxConnections : maxConnections;
+	}
+
+	private void insert(int node, int efConstruction) {
+		int nodeLayer = links[node].length - 1;
+		if (entryPoint < 0) {
+			entryPoint = node;
+			maxLayer = nodeLayer;
+			return;
+		}
+		float[] query = vectors.getVector(node);
+
+		// Greedy descent through the layers above the node's top layer
+		int nearest = entryPoint;
+		for (int layer=maxLayer; layer>nodeLayer; layer--) {
+			nearest = searchLayerGreedy(query, nearest, layer);
+		}
+
+		// Link the node on each of its layers to the closest nodes found there
+		NodeHeap entryPoints = new NodeHeap(1, false);
+		entryPoints.push(nearest, vectors.similarity(query, nearest));
+		for (int layer=Math.min(nodeLayer, maxLayer); layer>=0; layer--) {
+			NodeHeap candidates = searchLayer(query, entryPoints, efConstruction, layer);
+			int maxLinks = getMaxLinks(layer, maxConnections);
+			for (int neighbour: selectNeighbours(node, candidates.toSortedNodes(), maxLinks)) {
+				links[node][layer][linkCounts[node][layer]++] = neighbour;
+				addLink(neighbour, node, layer, maxLinks);
+			}
+			entryPoints = candidates;
+		}
+		if (nodeLayer > maxLayer) {
+			entryPoint = node;
+			maxLayer = nodeLayer;
+		}
+	}
+
+	/**
+	 * Link a node to a new neighbour; if that takes it over the maximum number of links, its
+	 * links are re-selected from the old ones and the new one.
+	 */
+	private void addLink(int node, int neighbour, int layer, int maxLinks) {
+		int[] nodeLinks = links[node][layer];
+		nodeLinks[linkCounts[node][layer]++] = neighbour;
+		if (linkCounts[node][layer] > maxLinks) {
+			Integer[] nearestFirst = new Integer[linkCounts[node][layer]];
+			final float[] linkSimilarities = new float[nearestFirst.length];
+			for (int i=0; i<nearestFirst.length; i++) {
+				nearestFirst[i] = i;
+				linkSimilarities[i] = vectors.similarity(node, nodeLinks[i]);
+			}
+			Arrays.sort(nearestFirst, new java.util.Comparator<Integer>() {
+				@Override
+				public int compare(Integer i1, Integer i2) {
+					return Float.compare(linkSimilarities[i2], linkSimilarities[i1]);
+				}
+			});
+			int[] candidates = new int[nearestFirst.length];
+			for (int i=0; i<candidates.length; i++) {
+				candidates[i] = nodeLinks[nearestFirst[i]];
+			}
+			int[] selected = selectNeighbours(node, candidates, maxLinks);
+			System.arraycopy(selected, 0, nodeLinks, 0, selected.length);
+			linkCounts[node][layer] = selected.length;
+		}
+	}
+
+	/**
+	 * Neighbour selection heuristic of the HNSW paper: a candidate is only linked if it is more
+	 * similar to the node than to any neighbour selected before it, which spreads the links over
+	 * different directions instead of spending them all on one dense cluster. Remaining slots are
+	 * filled with the nearest of the skipped candidates, so that nodes keep enough links.
+	 * @param node Node to select neighbours for.
+	 * @param nearestFirst Candidates, most similar to the node first.
+	 * @param maxLinks Maximum number of neighbours to select.
+	 * @return Selected neighbours.
+	 */
+	private int[] selectNeighbours(int node, int[] nearestFirst, int maxLinks) {
+		int[] selected = new int[Math.min(maxLinks, nearestFirst.length)];
+		int selectedCount = 0;
+		boolean[] skipped = new boolean[nearestFirst.length];
+		for (int i=0; i<nearestFirst.length && selectedCount<selected.length; i++) {
+			int candidate = nearestFirst[i];
+			float nodeSimilarity = vectors.similarity(node, candidate);
+			for (int j=0; j<selectedCount && !skipped[i]; j++) {
+				skipped[i] = vectors.similarity(candidate, selected[j]) > nodeSimilarity;
+			}
+			if (!skipped[i]) {
+				selected[selectedCount++] = candidate;
+			}
+		}
+		for (int i=0; i<nearestFirst.length && selectedCount<selected.length; i++) {
+			if (skipped[i]) {
+				selected[selectedCount++] = nearestFirst[i];
+			}
+		}
+		return selected;
+	}
+
+	/**
+	 * Approximate top-k search.
+	 * @param query Query vector; need not be normalized.
+	 * @param k Number of results.
+	 * @param efSearch Number of candidates kept while exploring layer 0 (at least k); higher values
+	 * improve recall at the cost of speed.
+	 * @return Nodes of the (approximately) k most similar documents, most similar first.
+	 */
+	int[] search(float[] query, int k, int efSearch) {
+		if (entryPoint < 0 || k <= 0) {
+			return new int[0];
+		}
+		float[] normalizedQuery = normalize(query);
+		int nearest = entryPoint;
+		for (int layer=maxLayer; layer>0; layer--) {
+			nearest = searchLayerGreedy(normalizedQuery, nearest, layer);
+		}
+		NodeHeap entryPoints = new NodeHeap(1, false);
+		entryPoints.push(nearest, vectors.similarity(normalizedQuery, nearest));
+		NodeHeap candidates = searchLayer(normalizedQuery, entryPoints, Math.max(efSearch, k), 0);
+		int[] nearestFirst = candidates.toSortedNodes();
+		return nearestFirst.length > k ? Arrays.copyOf(nearestFirst, k) : nearestFirst;
+	}
+
+	/**
+	 * Follow links on a layer towards the query for as long as that gets closer.
+	 */
+	private int searchLayerGreedy(float[] query, int start, int layer) {
+		int nearest = start;
+		float nearestSimilarity = vectors.similarity(query, nearest);
+		boolean improved = true;
+		while (improved) {
+			improved = false;
+			int[] nodeLinks = links[nearest][layer];
+			for (int i=0, linkCount=linkCounts[nearest][layer]; i<linkCount; i++) {
+				float linkSimilarity = vectors.similarity(query, nodeLinks[i]);
+				if (linkSimilarity > nearestSimilarity) {
+					nearestSimilarity = linkSimilarity;
+					nearest = nodeLinks[i];
+					improved = true;
+				}
+			}
+		}
+		return nearest;
+	}
+
+	/**
+	 * Best-first exploration of a layer from the given entry points.
+	 * @return The ef most similar nodes found, as a heap with the least similar on top.
+	 */
+	private NodeHeap searchLayer(float[] query, NodeHeap entryPoints, int ef, int layer) {
+		BitSet visited = new BitSet(vectors.size());
+		NodeHeap candidates = new NodeHeap(ef + 1, true);
+		NodeHeap nearest = new NodeHeap(ef + 1, false);
+		for (int i=0; i<entryPoints.size(); i++) {
+			int node = entryPoints.nodeAt(i);
+			visited.set(node);
+			candidates.push(node, entryPoints.similarityAt(i));
+			nearest.push(node, entryPoints.similarityAt(i));
+		}
+		while (candidates.size() > 0) {
+			float candidateSimilarity = candidates.topSimilarity();
+			if (nearest.size() >= ef && candidateSimilarity < nearest.topSimilarity()) {
+				break;
+			}
+			int candidate = candidates.pop();
+			int[] nodeLinks = links[candidate][layer];
+			for (int i=0, linkCount=linkCounts[candidate][layer]; i<linkCount; i++) {
+				int neighbour = nodeLinks[i];
+				if (visited.get(neighbour)) {
+					continue;
+				}
+				visited.set(neighbour);
+				float neighbourSimilarity = vectors.similarity(query, neighbour);
+				if (nearest.size() < ef || neighbourSimilarity > nearest.topSimilarity()) {
+					candidates.push(neighbour, neighbourSimilarity);
+					nearest.push(neighbour, neighbourSimilarity);
+					if (nearest.size() > ef) {
+						nearest.pop();
+					}
+				}
+			}
+		}
+		return nearest;
+	}
+
+	private static float[] normalize(float[] vector) {
+		double norm = 0;
+		for (float value: vector) {
+			norm += value * value;
+		}
+		float[] normalizedVector = Arrays.copyOf(vector, vector.length);
+		if (norm > 0) {
+			float scale = (float) (1 / Math.sqrt(norm));
+			for (int i=0; i<normalizedVector.length; i++) {
+				normalizedVector[i] *= scale;
+			}
+		}
+		return normalizedVector;
+	}
+
+	/**
+	 * @return Identifier of the document of a node.
+	 */
+	String getId(int node) {
+		return vectors.getId(node);
+	}
+
+	/**
+	 * @return Number of indexed documents.
+	 */
+	int size() {
+		return vectors.size();
+	}
+
+	/**
+	 * Write the graph to a file. The vectors are not written, only the document identifiers of the
+	 * nodes, to check that the graph is read back with the same vectors.
+	 */
+	void write(Path path) throws IOException {
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path)))) {
+			out.writeInt(FILE_FORMAT_VERSION);
+			out.writeInt(vectors.size());
+			out.writeInt(maxConnections);
+			out.writeInt(entryPoint);
+			out.writeInt(maxLayer);
+			for (int node=0; node<vectors.size(); node++) {
+				out.writeUTF(vectors.getId(node));
+				out.writeInt(links[node].length);
+				for (int layer=0; layer<links[node].length; layer++) {
+					out.writeInt(linkCounts[node][layer]);
+					for (int i=0; i<linkCounts[node][layer]; i++) {
+						out.writeInt(links[node][layer][i]);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Read a graph written by {@link #write(Path)}.
+	 * @param path Graph file.
+	 * @param vectors Document vectors of the nodes; may be quantized even if the graph was built
+	 * with unquantized vectors.
+	 * @throws IOException If the file cannot be read, or the graph was built for other vectors.
+	 */
+	static HnswIndex read(Path path, DocumentVectorMatrix vectors) throws IOException {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+			int version = in.readInt();
+			if (version != FILE_FORMAT_VERSION) {
+				throw new IOException(String.format("Unsupported HNSW index file version %d.", version));
+			}
+			int count = in.readInt();
+			if (count != vectors.size()) {
+				throw new IOException(String.format("HNSW graph has %d nodes for %d document vectors.", count, vectors.size()));
+			}
+			int maxConnections = in.readInt();
+			int entryPoint = in.readInt();
+			int maxLayer = in.readInt();
+			int[][][] links = new int[count][][];
+			int[][] linkCounts = new int[count][];
+			for (int node=0; node<count; node++) {
+				String id = in.readUTF();
+				if (!id.equals(vectors.getId(node))) {
+					throw new IOException(String.format("HNSW graph node %d is %s rather than %s.", node, id, vectors.getId(node)));
+				}
+				int layers = in.readInt();
+				links[node] = new int[layers][];
+				linkCounts[node] = new int[layers];
+				for (int layer=0; layer<layers; layer++) {
+					int linkCount = in.readInt();
+					links[node][layer] = new int[linkCount];
+					linkCounts[node][layer] = linkCount;
+					for (int i=0; i<linkCount; i++) {
+						links[node][layer][i] = in.readInt();
+					}
+				}
+			}
+			return new HnswIndex(vectors, maxConnections, links, linkCounts, entryPoint, maxLayer);
+		}
+	}
+
+	/**
+	 * Binary heap of nodes keyed on their similarity to a query, with either the most or the least
+	 * similar node on top; kept in parallel primitive arrays.
+	 */
+	private static final class NodeHeap {
+		private final boolean mostSimilarOnTop;
+		private int[] nodes;
+		private float[] similarities;
+		private int size;
+
+		private NodeHeap(int initialCapacity, boolean mostSimilarOnTop) {
+			this.mostSimilarOnTop = mostSimilarOnTop;
+			this.nodes = new int[Math.max(1, initialCapacity)];
+			this.similarities = new float[nodes.length];
+		}
+
+		private int size() {
+			return size;
+		}
+
+		private int nodeAt(int index) {
+			return nodes[index];
+		}
+
+		private float similarityAt(int index) {
+			return similarities[index];
+		}
+
+		private float topSimilarity() {
+			return similarities[0];
+		}
+
+		private boolean isAbove(float similarity, float otherSimilarity) {
+			return mostSimilarOnTop ? similarity > otherSimilarity : similarity < otherSimilarity;
+		}
+
+		private void push(int node, float similarity) {
+			if (size == nodes.length) {
+				nodes = Arrays.copyOf(nodes, size * 2);
+				similarities = Arrays.copyOf(similarities, size * 2);
+			}
+			int index = size++;
+			while (index > 0) {
+				int parent = (index - 1) / 2;
+				if (!isAbove(similarity, similarities[parent])) {
+					break;
+				}
+				nodes[index] = nodes[parent];
+				similarities[index] = similarities[parent];
+				index = parent;
+			}
+			nodes[index] = node;
+			similarities[index] = similarity;
+		}
+
+		private int pop() {
+			int top = nodes[0];
+			size--;
+			int node = nodes[size];
+			float similarity = similarities[size];
+			int index = 0;
+			while (true) {
+				int child = 2 * index + 1;
+				if (child >= size) {
+					break;
+				}
+				if (child + 1 < size && isAbove(similarities[child + 1], similarities[child])) {
+					child++;
+				}
+				if (!isAbove(similarities[child], similarity)) {
+					break;
+				}
+				nodes[index] = nodes[child];
+				similarities[index] = similarities[child];
+				index = child;
+			}
+			nodes[index] = node;
+			similarities[index] = similarity;
+			return top;
+		}
+
+		/**
+		 * @return The nodes in the heap, most similar first.
+		 */
+		private int[] toSortedNodes() {
+			Integer[] order = new Integer[size];
+			for (int i=0; i<size; i++) {
+				order[i] = i;
+			}
+			Arrays.sort(order, new java.util.Comparator<Integer>() {
+				@Override
+				public int compare(Integer i1, Integer i2) {
+					return Float.compare(similarities[i2], similarities[i1]);
+				}
+			});
+			int[] sortedNodes = new int[size];
+			for (int i=0; i<size; i++) {
+				sortedNodes[i] = nodes[order[i]];
+			}
+			return sortedNodes;
+		}
+	}
+}
@@ -0,0 +1,166 @@
+package com.karlhammar.xdpservices.search;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.karlhammar.xdpservices.data.CodpDetails;
+import com.karlhammar.xdpservices.data.OdpSearchResult;
+
+/**
+ * Fuses the ranked result lists of several search engines into one ranking. Each distinct ODP gets
+ * a slot in a primitive score array that the engines' contributions are summed into, and the best
+ * slots are then selected with a bounded heap, so that only the requested number of results is
+ * ever sorted or turned into result objects.
+ */
+class ResultFusion {
+
+	/**
+	 * How an engine's result contributes to the fused score of an ODP.
+	 */
+	enum Strategy {
+		/** The engine's score, normalized by the engine's best score. */
+		SUM,
+		/** As SUM, multiplied by the engine's weight. */
+		WEIGHTED,
+		/** Reciprocal rank fusion: the engine's weight divided by (rrfK + rank). */
+		RRF
+	}
+
+	private final Strategy strategy;
+	private final double[] engineWeights;
+	private final int rrfK;
+
+	/**
+	 * @param strategy Fusion strategy.
+	 * @param engineWeights Weight of each engine, in the order that their result lists are fused;
+	 * ignored by the SUM strategy.
+	 * @param rrfK Rank constant of reciprocal rank fusion; larger values flatten the difference
+	 * between top and lower ranks.
+	 */
+	ResultFusion(Strategy strategy, double[] engineWeights, int rrfK) {
+		this.strategy = strategy;
+		this.engineWeights = engineWeights.clone();
+		this.rrfK = rrfK;
+	}
+
+	/**
+	 * Fuse engine result lists.
+	 * @param resultLists Result list of each engine, best first.
+	 * @param numResults Maximum number of fused results to return.
+	 * @return The best fused results, best first, with confidences scaled such that the best result
+	 * has confidence 1. ODPs only have their IRI set.
+	 */
+	List<OdpSearchResult> fuse(List<List<OdpSearchResult>> resultLists, int numResults) {
+		int totalCandidates = 0;
+		for (List<OdpSearchResult> results: resultLists) {
+			totalCandidates += results.size();
+		}
+
+		// Sum the contributions of all engines per ODP
+		String[] iris = new String[totalCandidates];
+		double[] scores = new double[totalCandidates];
+		Map<String,Integer> slots = new HashMap<String,Integer>(totalCandidates * 2);
+		int slotCount = 0;
+		for (int engine=0; engine<resultLists.size(); engine++) {
+			List<OdpSearchResult> results = resultLists.get(engine);
+			if (results.isEmpty()) {
+				continue;
+			}
+			double weight = strategy == Strategy.SUM ? 1.0 : engineWeights[engine];
+			double bestScore = results.get(0).getConfidence();
+			for (int rank=0; rank<results.size(); rank++) {
+				OdpSearchResult result = results.get(rank);
+				double contribution;
+				if (strategy == Strategy.RRF) {
+					contribution = weight / (rrfK + rank + 1);
+				}
+				else {
+					contribution = bestScore > 0 ? weight * result.getConfidence() / bestScore : 0;
+				}
+				String iri = result.getOdp().getIri();
+				Integer slot = slots.get(iri);
+				if (slot == null) {
+					slot = slotCount++;
+					slots.put(iri, slot);
+					iris[slot] = iri;
+				}
+				scores[slot] += contribution;
+			}
+		}
+
+		// Keep the best slots in a bounded min-heap, whose root is the worst result kept so far
+		int[] heap = new int[Math.min(numResults, slotCount)];
+		int heapSize = 0;
+		for (int slot=0; slot<slotCount; slot++) {
+			if (heapSize < heap.length) {
+				heap[heapSize] = slot;
+				siftUp(heap, heapSize++, scores);
+			}
+			else if (heapSize > 0 && isWorse(heap[0], slot, scores)) {
+				heap[0] = slot;
+				siftDown(heap, heapSize, scores);
+			}
+		}
+
+		// Repeatedly removing the root yields the kept slots from worst to best
+		int[] rankedSlots = new int[heapSize];
+		for (int i=heapSize-1; i>=0; i--) {
+			rankedSlots[i] = heap[0];
+			heap[0] = heap[i];
+			siftDown(heap, i, scores);
+		}
+		List<OdpSearchResult> fusedResults = new ArrayList<OdpSearchResult>(rankedSlots.length);
+		double topScore = rankedSlots.length > 0 ? scores[rankedSlots[0]] : 0;
+		for (int slot: rankedSlots) {
+			double confidence = topScore > 0 ? scores[slot] / topScore : 0;
+			fusedResults.add(new OdpSearchResult(new CodpDetails(iris[slot], null), confidence));
+		}
+		return fusedResults;
+	}
+
+	/**
+	 * Ordering of slots: lower scores are worse, and among equal scores, ODPs first returned by
+	 * a later engine or at a lower rank are worse, which keeps the fused ranking deterministic.
+	 */
+	private static boolean isWorse(int slot, int otherSlot, double[] scores) {
+		return scores[slot] < scores[otherSlot] || (scores[slot] == scores[otherSlot] && slot > otherSlot);
+	}
+
+	private static void siftUp(int[] heap, int index, double[] scores) {
+		int slot = heap[index];
+		while (index > 0) {
+			int parent = (index - 1) / 2;
+			if (!isWorse(slot, heap[parent], scores)) {
+				break;
+			}
+			heap[index] = heap[parent];
+			index = parent;
+		}
+		heap[index] = slot;
+	}
+
+	private static void siftDown(int[] heap, int heapSize, double[] scores) {
+		if (heapSize == 0) {
+			return;
+		}
+		int index = 0;
+		int slot = heap[0];
+		while (true) {
+			int child = 2 * index + 1;
+			if (child >= heapSize) {
+				break;
+			}
+			if (child + 1 < heapSize && isWorse(heap[child + 1], heap[child], scores)) {
+				child++;
+			}
+			if (!isWorse(heap[child], slot, scores)) {
+				break;
+			}
+			heap[index] = heap[child];
+			index = child;
+		}
+		heap[index] = slot;
+	}
+}
@@ -1,10 +1,18 @@
 package com.karlhammar.xdpservices.search;
 
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.springframework.util.StringUtils;
 import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 
+import com.google.common.cache.CacheStats;
 import com.karlhammar.xdpservices.data.OdpSearchFilterConfiguration;
 import com.karlhammar.xdpservices.data.OdpSearchResult;
 
@@ -13,7 +21,31 @@ public class SearchController {
 
     @RequestMapping("/search/odpSearch")
     public OdpSearchResult[] odpSearch(@RequestParam(value="queryString", required=true) String queryString, 
-    		@RequestBody(required=false) OdpSearchFilterConfiguration filterConfiguration) {
-    	return CompositeSearch.INSTANCE.runSearch(queryString,filterConfiguration);
+    		@RequestParam(value="offset", defaultValue="0") int offset,
+    		@RequestParam(value="limit", defaultValue="" + CompositeSearch.DEFAULT_RESULT_LIMIT) int limit,
+    		@RequestBody(required=false) OdpSearchFilterConfiguration filterConfiguration, HttpServletResponse response) throws IOException {
+    	if (offset < 0 || limit < 1 || (long) offset + limit > CompositeSearch.INSTANCE.getMaxResultWindow()) {
+    		response.sendError(HttpServletResponse.SC_BAD_REQUEST, String.format("offset must be non-negative, limit positive, and offset + limit at most %d.", 
+    				CompositeSearch.INSTANCE.getMaxResultWindow()));
+    		return null;
+    	}
+    	SearchResponse searchResponse = CompositeSearch.INSTANCE.search(queryString, filterConfiguration, offset, limit);
+    	// Flag results that are missing the contribution of a slow or failed search engine
+    	if (searchResponse.isDegraded()) {
+    		response.setHeader("X-Degraded-Search-Engines", StringUtils.collectionToCommaDelimitedString(searchResponse.getDegradedEngines()));
+    	}
+    	return searchResponse.getResults();
+    }
+    
+    @RequestMapping("/search/resultCacheStats")
+    public Map<String,Object> resultCacheStats() {
+    	CacheStats stats = CompositeSearch.INSTANCE.getResultCacheStats();
+    	Map<String,Object> statsMap = new LinkedHashMap<String,Object>();
+    	statsMap.put("size", CompositeSearch.INSTANCE.getResultCacheSize());
+    	statsMap.put("hitCount", stats.hitCount());
+    	statsMap.put("missCount", stats.missCount());
+    	statsMap.put("hitRate", stats.hitRate());
+    	statsMap.put("evictionCount", stats.evictionCount());
+    	return statsMap;
     }
 }
\ No newline at end of file
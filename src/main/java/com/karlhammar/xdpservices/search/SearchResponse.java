@@ -0,0 +1,32 @@
+package com.karlhammar.xdpservices.search;
+
+import java.util.List;
+
+import com.karlhammar.xdpservices.data.OdpSearchResult;
+
+/**
+ * Outcome of a composite search: the merged results, plus the names of any search engines that
+ * did not answer within the latency budget and whose results are therefore missing.
+ */
+public class SearchResponse {
+
+	private final OdpSearchResult[] results;
+	private final List<String> degradedEngines;
+
+	public SearchResponse(OdpSearchResult[] results, List<String> degradedEngines) {
+		this.results = results;
+		this.degradedEngines = degradedEngines;
+	}
+
+	public OdpSearchResult[] getResults() {
+		return results;
+	}
+
+	public List<String> getDegradedEngines() {
+		return degradedEngines;
+	}
+
+	public boolean isDegraded() {
+		return !degradedEngines.isEmpty();
+	}
+}
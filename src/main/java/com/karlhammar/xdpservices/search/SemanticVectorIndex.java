@@ -0,0 +1,342 @@
+package com.karlhammar.xdpservices.search;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Properties;
+import java.util.Set;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.karlhammar.xdpservices.PropertyOverrides;
+import com.karlhammar.xdpservices.XdpMetrics;
+
+import pitt.search.semanticvectors.FlagConfig;
+import pitt.search.semanticvectors.ObjectVector;
+import pitt.search.semanticvectors.SearchResult;
+import pitt.search.semanticvectors.VectorStoreRAM;
+import pitt.search.semanticvectors.vectors.RealVector;
+import pitt.search.semanticvectors.vectors.Vector;
+import pitt.search.semanticvectors.vectors.VectorFactory;
+import pitt.search.semanticvectors.vectors.VectorType;
+
+/**
+ * Keeps the SemanticVectors term and document vector stores resident in memory, such that
+ * searches do not need to re-read termvectors.bin and docvectors.bin from disk on every query.
+ * The two stores are held together in one immutable snapshot which is swapped atomically by
+ * {@link #reload()}, e.g., after the index has been rebuilt.
+ *
+ * Searches either score every document vector (semanticSearchMode=exact) or, for real-valued
+ * vectors, walk an HNSW graph built over the document vectors at indexing time
+ * (semanticSearchMode=hnsw), which scores only a small fraction of the documents. Exact search
+ * remains the fallback when no graph is available and for searches restricted by a filter, and
+ * is the reference that the recall of the approximate search is measured against.
+ *
+ * Real-valued document vectors are held in a {@link DocumentVectorMatrix} instead of a vector
+ * store, as float rows or, with semanticVectorStorage=int8, as int8 rows taking a quarter of the
+ * memory; other vector types are kept in the Semantic Vectors store and scored through its API.
+ */
+public class SemanticVectorIndex {
+
+	// Singleton instance.
+	public final static SemanticVectorIndex INSTANCE = new SemanticVectorIndex();
+
+	// Singleton properties.
+	private static Log log;
+	private static Properties searchProperties;
+	private static volatile VectorStores vectorStores;
+	private static boolean approximateSearch;
+	private static int efSearch;
+	private static boolean quantizeVectors;
+	private static int parallelScoringMinDocuments;
+
+	/**
+	 * Private singleton constructor loading the vector stores for the first time.
+	 */
+	private SemanticVectorIndex() {
+		// Instantiate logging
+		log = LogFactory.getLog(SemanticVectorIndex.class);
+
+		// Load search properties
+		try {
+			searchProperties = new Properties();
+			searchProperties.load(SemanticVectorIndex.class.getResourceAsStream("search.properties"));
+			PropertyOverrides.apply(searchProperties);
+		}
+		catch (IOException e) {
+			log.fatal(String.format("Unable to load search properties. Error message: %s", e.getMessage()));
+		}
+		approximateSearch = "hnsw".equals(searchProperties.getProperty("semanticSearchMode", "exact"));
+		efSearch = Integer.parseInt(searchProperties.getProperty("hnswEfSearch", "100"));
+		quantizeVectors = "int8".equals(searchProperties.getProperty("semanticVectorStorage", "float"));
+		parallelScoringMinDocuments = Integer.parseInt(searchProperties.getProperty("parallelScoringMinDocuments", "100000"));
+
+		reload();
+	}
+
+	/**
+	 * (Re)load term and document vector stores from disk into memory. The new stores replace
+	 * the old ones only if both could be loaded; otherwise the previous stores stay in use.
+	 * Real-valued document vectors are copied into a matrix, after which their store is dropped.
+	 * The HNSW graph is loaded along with them if it exists and matches the document vectors.
+	 */
+	public void reload() {
+		String vectorBasePath = searchProperties.getProperty("semanticVectorsPath");
+		String termVectorsPath = String.format("%s/termvectors.bin", vectorBasePath);
+		String docVectorsPath = String.format("%s/docvectors.bin", vectorBasePath);
+		try {
+			long loadStartTime = System.nanoTime();
+			FlagConfig flagConfig = FlagConfig.getFlagConfig(null);
+			VectorStoreRAM termVectors = VectorStoreRAM.readFromFile(flagConfig, termVectorsPath);
+			VectorStoreRAM docVectors = VectorStoreRAM.readFromFile(flagConfig, docVectorsPath);
+			int docVectorCount = docVectors.getNumVectors();
+			String docVectorStorage = flagConfig.vectortype().toString();
+			DocumentVectorMatrix docVectorMatrix = null;
+			HnswIndex hnswIndex = null;
+			if (flagConfig.vectortype() == VectorType.REAL) {
+				docVectorMatrix = DocumentVectorMatrix.fromStore(docVectors, quantizeVectors);
+				docVectors = null;
+				docVectorStorage = String.format("%s matrix of %d KB", quantizeVectors ? "int8" : "float", docVectorMatrix.getVectorBytes() / 1024);
+				hnswIndex = loadHnswIndex(getHnswIndexPath(), docVectorMatrix);
+			}
+			vectorStores = new VectorStores(flagConfig, termVectors, docVectors, docVectorMatrix, hnswIndex);
+			float loadDuration = (System.nanoTime() - loadStartTime) / 1000000000f;
+			log.info(String.format("Loaded %d term vectors and %d document vectors (%s)%s in %.2f seconds.",
+					termVectors.getNumVectors(), docVectorCount, docVectorStorage, hnswIndex != null ? " with HNSW graph" : "", loadDuration));
+		}
+		catch (IOException e) {
+			log.error(String.format("Unable to load Semantic Vectors stores. Error message: %s", e.getMessage()));
+		}
+	}
+
+	/**
+	 * Load the vector stores unless already loaded. Unlike {@link #reload()}, leaves loaded stores
+	 * alone, so may be called any number of times.
+	 * @return True if vector stores are loaded.
+	 */
+	public synchronized boolean open() {
+		if (!isLoaded()) {
+			reload();
+		}
+		return isLoaded();
+	}
+
+	private static Path getHnswIndexPath() {
+		return Paths.get(String.format("%s/docvectors.hnsw", searchProperties.getProperty("semanticVectorsPath")));
+	}
+
+	/**
+	 * @return The HNSW graph, or null if there is none or it was built for other document vectors
+	 * (e.g., the build was interrupted between writing the vectors and the graph).
+	 */
+	private static HnswIndex loadHnswIndex(Path hnswIndexPath, DocumentVectorMatrix docVectorMatrix) {
+		if (!Files.exists(hnswIndexPath)) {
+			return null;
+		}
+		try {
+			return HnswIndex.read(hnswIndexPath, docVectorMatrix);
+		}
+		catch (IOException e) {
+			log.error(String.format("Unable to load HNSW graph %s; using exact search. Error message: %s", hnswIndexPath, e.getMessage()));
+			return null;
+		}
+	}
+
+	/**
+	 * Build the HNSW graph over the document vectors on disk (as just written by the Semantic
+	 * Vectors indexer) and write it next to them, replacing any previous graph atomically. Only
+	 * real-valued vectors are supported; for other vector types no graph is built, and searches
+	 * stay exact. Call {@link #reload()} afterwards to search the new graph.
+	 * @param maxConnections Maximum number of neighbours per node (doubled on the bottom layer).
+	 * @param efConstruction Number of candidates considered when linking each document.
+	 * @return Number of documents in the graph.
+	 * @throws IOException If the document vectors cannot be read or the graph cannot be written.
+	 */
+	public int buildHnswIndex(int maxConnections, int efConstruction) throws IOException {
+		FlagConfig flagConfig = FlagConfig.getFlagConfig(null);
+		Path hnswIndexPath = getHnswIndexPath();
+		String docVectorsPath = String.format("%s/docvectors.bin", searchProperties.getProperty("semanticVectorsPath"));
+		// The vector type is only known once the store header has been read
+		VectorStoreRAM docVectors = VectorStoreRAM.readFromFile(flagConfig, docVectorsPath);
+		if (flagConfig.vectortype() != VectorType.REAL) {
+			log.info(String.format("No HNSW graph built for %s vectors; semantic search will be exact.", flagConfig.vectortype()));
+			Files.deleteIfExists(hnswIndexPath);
+			return 0;
+		}
+		// Built over float rows whatever the configured storage, as quantized vectors give a worse graph
+		HnswIndex hnswIndex = HnswIndex.build(DocumentVectorMatrix.fromStore(docVectors, false), maxConnections, efConstruction, 42);
+		Path temporaryPath = hnswIndexPath.resolveSibling(hnswIndexPath.getFileName() + ".tmp");
+		hnswIndex.write(temporaryPath);
+		Files.move(temporaryPath, hnswIndexPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		return hnswIndex.size();
+	}
+
+	/**
+	 * @return True if vector stores have been loaded.
+	 */
+	public boolean isLoaded() {
+		return vectorStores != null;
+	}
+
+	/**
+	 * Sum-of-terms search over the in-memory vector stores; equivalent to running the
+	 * SemanticVectors command line search with "-searchtype SUM", without touching disk.
+	 * @param queryTerms Query terms, looked up in the term vector store.
+	 * @param numResults Maximum number of results to return.
+	 * @return Document search results, highest scoring first. Empty if no query term is known
+	 * or if the vector stores have not been loaded.
+	 */
+	public List<SearchResult> search(List<String> queryTerms, int numResults) {
+		return search(queryTerms, numResults, null);
+	}
+
+	/**
+	 * Sum-of-terms search over the in-memory vector stores, restricted to a candidate set of
+	 * documents; documents outside the candidate set are not scored at all.
+	 * @param queryTerms Query terms, looked up in the term vector store.
+	 * @param numResults Maximum number of results to return.
+	 * @param allowedDocuments Identifiers (ODP IRIs) of the documents that may be returned, or
+	 * null to search all documents.
+	 * @return Document search results, highest scoring first.
+	 */
+	public List<SearchResult> search(List<String> queryTerms, int numResults, Set<String> allowedDocuments) {
+		return search(queryTerms, numResults, allowedDocuments, !approximateSearch);
+	}
+
+	/**
+	 * As {@link #search(List, int, Set)}, choosing between exact and approximate search regardless
+	 * of the configured mode, e.g., to measure the recall of approximate search against exact search.
+	 * @param exact True to score all documents; false to search the HNSW graph if there is one. A
+	 * filtered search (allowedDocuments not null) is always exact, as the filter may exclude most
+	 * of the neighbourhood that the graph search explores.
+	 */
+	public List<SearchResult> search(List<String> queryTerms, int numResults, Set<String> allowedDocuments, boolean exact) {
+		// Grab a consistent snapshot; a concurrent reload will not affect this search
+		VectorStores stores = vectorStores;
+		if (stores == null) {
+			return new ArrayList<SearchResult>();
+		}
+
+		// Build query vector by superposing the term vectors of all known query terms
+		Vector queryVector = VectorFactory.createZeroVector(stores.flagConfig.vectortype(), stores.flagConfig.dimension());
+		for (String queryTerm: queryTerms) {
+			Vector termVector = stores.termVectors.getVector(queryTerm);
+			if (termVector != null) {
+				queryVector.superpose(termVector, 1.0, null);
+			}
+		}
+		if (queryVector.isZeroVector()) {
+			// None of the query terms is in the vocabulary, e.g., misspellings or non-English terms
+			XdpMetrics.REGISTRY.counter("search.semanticvectors.unknownQueryTerms").inc();
+			return new ArrayList<SearchResult>();
+		}
+		queryVector.normalize();
+
+		if (stores.docVectorMatrix != null) {
+			return searchMatrix(stores, ((RealVector) queryVector).getCoordinates(), numResults, allowedDocuments, exact);
+		}
+
+		// Score all document vectors, keeping the best ones in a bounded min-heap
+		Comparator<SearchResult> byScore = new Comparator<SearchResult>() {
+			@Override
+			public int compare(SearchResult sr1, SearchResult sr2) {
+				return Double.compare(sr1.getScore(), sr2.getScore());
+			}
+		};
+		PriorityQueue<SearchResult> topResults = new PriorityQueue<SearchResult>(numResults + 1, byScore);
+		Enumeration<ObjectVector> docVectors = stores.docVectors.getAllVectors();
+		while (docVectors.hasMoreElements()) {
+			ObjectVector docVector = docVectors.nextElement();
+			if (allowedDocuments != null && !allowedDocuments.contains(docVector.getObject().toString())) {
+				continue;
+			}
+			double score = queryVector.measureOverlap(docVector.getVector());
+			if (topResults.size() < numResults) {
+				topResults.add(new SearchResult(score, docVector));
+			}
+			else if (score > topResults.peek().getScore()) {
+				topResults.poll();
+				topResults.add(new SearchResult(score, docVector));
+			}
+		}
+
+		List<SearchResult> results = new ArrayList<SearchResult>(topResults);
+		Collections.sort(results, Collections.reverseOrder(byScore));
+		return results;
+	}
+
+	/**
+	 * Search over the document vector matrix, by HNSW graph or by scanning all (allowed) rows.
+	 * @param query Query vector, normalized.
+	 */
+	private static List<SearchResult> searchMatrix(VectorStores stores, float[] query, int numResults, Set<String> allowedDocuments, boolean exact) {
+		DocumentVectorMatrix docVectorMatrix = stores.docVectorMatrix;
+		int[] rows;
+		if (!exact && allowedDocuments == null && stores.hnswIndex != null) {
+			XdpMetrics.REGISTRY.counter("search.semanticvectors.approximate").inc();
+			rows = stores.hnswIndex.search(query, numResults, efSearch);
+		}
+		else {
+			int[] candidateRows = null;
+			if (allowedDocuments != null) {
+				candidateRows = new int[allowedDocuments.size()];
+				int candidateCount = 0;
+				for (String allowedDocument: allowedDocuments) {
+					int row = docVectorMatrix.getRow(allowedDocument);
+					if (row >= 0) {
+						candidateRows[candidateCount++] = row;
+					}
+				}
+				candidateRows = Arrays.copyOf(candidateRows, candidateCount);
+			}
+			rows = docVectorMatrix.search(query, numResults, candidateRows, parallelScoringMinDocuments);
+		}
+
+		// Only the results are turned into vector objects, with their scores against the unquantized query
+		List<SearchResult> results = new ArrayList<SearchResult>(rows.length);
+		for (int row: rows) {
+			ObjectVector docVector = new ObjectVector(docVectorMatrix.getId(row), new RealVector(docVectorMatrix.getVector(row)));
+			results.add(new SearchResult(docVectorMatrix.similarity(query, row), docVector));
+		}
+		if (docVectorMatrix.isQuantized()) {
+			Collections.sort(results, new Comparator<SearchResult>() {
+				@Override
+				public int compare(SearchResult sr1, SearchResult sr2) {
+					return Double.compare(sr2.getScore(), sr1.getScore());
+				}
+			});
+		}
+		return results;
+	}
+
+	/**
+	 * Immutable pairing of term and document vectors loaded together, and the HNSW graph over the
+	 * document vectors (null if there is none). Real-valued document vectors are only held in the
+	 * matrix; other vector types only in the store.
+	 */
+	private static class VectorStores {
+		private final FlagConfig flagConfig;
+		private final VectorStoreRAM termVectors;
+		private final VectorStoreRAM docVectors;
+		private final DocumentVectorMatrix docVectorMatrix;
+		private final HnswIndex hnswIndex;
+
+		private VectorStores(FlagConfig flagConfig, VectorStoreRAM termVectors, VectorStoreRAM docVectors, DocumentVectorMatrix docVectorMatrix, HnswIndex hnswIndex) {
+			this.flagConfig = flagConfig;
+			this.termVectors = termVectors;
+			this.docVectors = docVectors;
+			this.docVectorMatrix = docVectorMatrix;
+			this.hnswIndex = hnswIndex;
+		}
+	}
+}
@@ -0,0 +1,202 @@
+package com.karlhammar.xdpservices.search;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class DocumentVectorMatrixTest {
+
+	private static final int DIMENSION = 64;
+
+	@Test
+	public void floatSearchMatchesNaiveScan() {
+		Random random = new Random(1);
+		DocumentVectorMatrix matrix = DocumentVectorMatrix.fromVectors(randomVectors(random, 1000, DIMENSION), false);
+		for (int trial=0; trial<50; trial++) {
+			float[] query = normalizedQuery(random);
+			for (int k: new int[] {1, 10, 1000, 1500}) {
+				assertArrayEquals(naiveSearch(matrix, query, k, null), matrix.search(query, k, null, Integer.MAX_VALUE));
+			}
+		}
+	}
+
+	@Test
+	public void parallelSearchMatchesSerialSearch() {
+		Random random = new Random(2);
+		Map<String,float[]> vectors = randomVectors(random, 1000, DIMENSION);
+		for (boolean quantize: new boolean[] {false, true}) {
+			DocumentVectorMatrix matrix = DocumentVectorMatrix.fromVectors(vectors, quantize);
+			for (int trial=0; trial<50; trial++) {
+				float[] query = normalizedQuery(random);
+				int[] serialRows = matrix.search(query, 10, null, Integer.MAX_VALUE);
+				assertArrayEquals(serialRows, matrix.search(query, 10, null, 2));
+				assertArrayEquals(serialRows, matrix.search(query, 10, null, 37));
+			}
+		}
+	}
+
+	@Test
+	public void candidateSearchMatchesNaiveScanOfCandidates() {
+		Random random = new Random(3);
+		DocumentVectorMatrix matrix = DocumentVectorMatrix.fromVectors(randomVectors(random, 1000, DIMENSION), false);
+		for (int trial=0; trial<50; trial++) {
+			// Distinct rows in increasing order, as the search gets them from a set of IRIs
+			Set<Integer> candidates = new HashSet<Integer>();
+			for (int i=random.nextInt(100); i>0; i--) {
+				candidates.add(random.nextInt(matrix.size()));
+			}
+			List<Integer> sortedCandidates = new ArrayList<Integer>(candidates);
+			Collections.sort(sortedCandidates);
+			int[] candidateRows = new int[sortedCandidates.size()];
+			for (int i=0; i<candidateRows.length; i++) {
+				candidateRows[i] = sortedCandidates.get(i);
+			}
+			float[] query = normalizedQuery(random);
+			int[] expected = naiveSearch(matrix, query, 10, candidateRows);
+			assertArrayEquals(expected, matrix.search(query, 10, candidateRows, Integer.MAX_VALUE));
+			assertArrayEquals(expected, matrix.search(query, 10, candidateRows, 2));
+		}
+	}
+
+	@Test
+	public void quantizedSearchAgreesWithFloatSearch() {
+		Random random = new Random(4);
+		Map<String,float[]> vectors = randomVectors(random, 2000, DIMENSION);
+		DocumentVectorMatrix floatMatrix = DocumentVectorMatrix.fromVectors(vectors, false);
+		DocumentVectorMatrix quantizedMatrix = DocumentVectorMatrix.fromVectors(vectors, true);
+		assertTrue(quantizedMatrix.isQuantized());
+		assertEquals(floatMatrix.getVectorBytes() / 4 + 4 * quantizedMatrix.size(), quantizedMatrix.getVectorBytes());
+		int found = 0, total = 0;
+		for (int trial=0; trial<100; trial++) {
+			float[] query = normalizedQuery(random);
+			Set<Integer> floatRows = rowSet(floatMatrix.search(query, 10, null, Integer.MAX_VALUE));
+			for (int row: quantizedMatrix.search(query, 10, null, Integer.MAX_VALUE)) {
+				found += floatRows.contains(row) ? 1 : 0;
+			}
+			total += floatRows.size();
+		}
+		double agreement = (double) found / total;
+		assertTrue(String.format("int8 top-10 agreement %.3f", agreement), agreement >= 0.95);
+	}
+
+	@Test
+	public void tiesAreBrokenByRow() {
+		Random random = new Random(5);
+		// Few distinct vectors, so that many rows score the same
+		float[][] distinctVectors = new float[5][DIMENSION];
+		for (float[] vector: distinctVectors) {
+			for (int i=0; i<DIMENSION; i++) {
+				vector[i] = (float) random.nextGaussian();
+			}
+		}
+		Map<String,float[]> vectors = new HashMap<String,float[]>();
+		for (int i=0; i<200; i++) {
+			vectors.put(String.format("odp%d", i), distinctVectors[random.nextInt(distinctVectors.length)].clone());
+		}
+		for (boolean quantize: new boolean[] {false, true}) {
+			DocumentVectorMatrix matrix = DocumentVectorMatrix.fromVectors(vectors, quantize);
+			for (int trial=0; trial<20; trial++) {
+				float[] query = normalizedQuery(random);
+				int[] serialRows = matrix.search(query, 50, null, Integer.MAX_VALUE);
+				if (!quantize) {
+					assertArrayEquals(naiveSearch(matrix, query, 50, null), serialRows);
+				}
+				assertArrayEquals(serialRows, matrix.search(query, 50, null, 2));
+			}
+		}
+	}
+
+	@Test
+	public void rowsAreSortedByIdentifier() {
+		Map<String,float[]> vectors = new HashMap<String,float[]>();
+		vectors.put("c", new float[] {0, 2});
+		vectors.put("a", new float[] {3, 4});
+		vectors.put("b", new float[] {0, 0});
+		DocumentVectorMatrix matrix = DocumentVectorMatrix.fromVectors(vectors, false);
+		assertEquals(3, matrix.size());
+		assertEquals("a", matrix.getId(0));
+		assertEquals(2, matrix.getRow("c"));
+		assertEquals(-1, matrix.getRow("d"));
+		assertArrayEquals(new float[] {0.6f, 0.8f}, matrix.getVector(0), 1e-6f);
+		assertArrayEquals(new float[] {0, 0}, matrix.getVector(1), 0);
+		assertEquals(0.8f, matrix.similarity(0, 2), 1e-6f);
+	}
+
+	/**
+	 * Vectors with standard normal coordinates, which the matrix normalizes.
+	 */
+	static Map<String,float[]> randomVectors(Random random, int count, int dimension) {
+		Map<String,float[]> vectors = new HashMap<String,float[]>();
+		for (int i=0; i<count; i++) {
+			float[] vector = new float[dimension];
+			for (int j=0; j<dimension; j++) {
+				vector[j] = (float) random.nextGaussian();
+			}
+			vectors.put(String.format("odp%d", i), vector);
+		}
+		return vectors;
+	}
+
+	private static float[] normalizedQuery(Random random) {
+		float[] query = new float[DIMENSION];
+		double norm = 0;
+		for (int i=0; i<DIMENSION; i++) {
+			query[i] = (float) random.nextGaussian();
+			norm += query[i] * query[i];
+		}
+		for (int i=0; i<DIMENSION; i++) {
+			query[i] /= Math.sqrt(norm);
+		}
+		return query;
+	}
+
+	/**
+	 * Reference search: score every (candidate) row, sort all of them by score, descending, then
+	 * row, ascending, and keep the first k.
+	 */
+	private static int[] naiveSearch(final DocumentVectorMatrix matrix, final float[] query, int k, int[] candidateRows) {
+		List<Integer> rows = new ArrayList<Integer>();
+		if (candidateRows != null) {
+			for (int row: candidateRows) {
+				rows.add(row);
+			}
+		}
+		else {
+			for (int row=0; row<matrix.size(); row++) {
+				rows.add(row);
+			}
+		}
+		Collections.sort(rows, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer row1, Integer row2) {
+				int byScore = Float.compare(matrix.similarity(query, row2), matrix.similarity(query, row1));
+				return byScore != 0 ? byScore : row1.compareTo(row2);
+			}
+		});
+		int[] topRows = new int[Math.min(k, rows.size())];
+		for (int i=0; i<topRows.length; i++) {
+			topRows[i] = rows.get(i);
+		}
+		return topRows;
+	}
+
+	private static Set<Integer> rowSet(int[] rows) {
+		Set<Integer> rowSet = new HashSet<Integer>();
+		for (int row: rows) {
+			rowSet.add(row);
+		}
+		return rowSet;
+	}
+}
@@ -0,0 +1,144 @@
+package com.karlhammar.xdpservices.search;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class HnswIndexTest {
+
+	private static final int DIMENSION = 32;
+
+	private static Map<String,float[]> vectors;
+	private static DocumentVectorMatrix matrix;
+	private static HnswIndex hnswIndex;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@BeforeClass
+	public static void buildIndex() {
+		vectors = clusteredVectors(new Random(1), 3000, 60);
+		matrix = DocumentVectorMatrix.fromVectors(vectors, false);
+		hnswIndex = HnswIndex.build(matrix, 16, 100, 42);
+	}
+
+	@Test
+	public void recallAgainstExactSearch() {
+		Random random = new Random(2);
+		for (int k: new int[] {1, 10}) {
+			int found = 0, total = 0;
+			for (int trial=0; trial<200; trial++) {
+				float[] query = nearbyQuery(random);
+				Set<Integer> exactRows = rowSet(matrix.search(query, k, null, Integer.MAX_VALUE));
+				for (int row: hnswIndex.search(query, k, 100)) {
+					found += exactRows.contains(row) ? 1 : 0;
+				}
+				total += exactRows.size();
+			}
+			double recall = (double) found / total;
+			assertTrue(String.format("HNSW recall@%d %.3f", k, recall), recall >= 0.95);
+		}
+	}
+
+	@Test
+	public void searchReturnsDistinctNodesMostSimilarFirst() {
+		Random random = new Random(3);
+		for (int trial=0; trial<50; trial++) {
+			float[] query = nearbyQuery(random);
+			int[] nodes = hnswIndex.search(query, 20, 50);
+			assertEquals(20, nodes.length);
+			assertEquals(20, rowSet(nodes).size());
+			for (int i=1; i<nodes.length; i++) {
+				assertTrue(matrix.similarity(query, nodes[i - 1]) >= matrix.similarity(query, nodes[i]));
+			}
+		}
+	}
+
+	@Test
+	public void readGraphGivesSameResults() throws IOException {
+		Path path = folder.newFile("hnsw.bin").toPath();
+		hnswIndex.write(path);
+		HnswIndex readIndex = HnswIndex.read(path, matrix);
+		assertEquals(hnswIndex.size(), readIndex.size());
+		Random random = new Random(4);
+		for (int trial=0; trial<50; trial++) {
+			float[] query = nearbyQuery(random);
+			assertArrayEquals(hnswIndex.search(query, 10, 50), readIndex.search(query, 10, 50));
+		}
+		// A graph built over float rows may be used with the quantized rows of the same vectors
+		assertEquals(matrix.size(), HnswIndex.read(path, DocumentVectorMatrix.fromVectors(vectors, true)).size());
+	}
+
+	@Test(expected = IOException.class)
+	public void readRejectsGraphOfOtherVectors() throws IOException {
+		Path path = folder.newFile("hnsw.bin").toPath();
+		hnswIndex.write(path);
+		Map<String,float[]> otherVectors = new HashMap<String,float[]>(vectors);
+		// Same number of vectors, but not the same documents
+		otherVectors.put("other", otherVectors.remove("odp1"));
+		HnswIndex.read(path, DocumentVectorMatrix.fromVectors(otherVectors, false));
+	}
+
+	@Test
+	public void emptyGraphFindsNothing() {
+		HnswIndex emptyIndex = HnswIndex.build(DocumentVectorMatrix.fromVectors(new HashMap<String,float[]>(), false), 16, 100, 42);
+		assertEquals(0, emptyIndex.size());
+		assertEquals(0, emptyIndex.search(new float[DIMENSION], 10, 50).length);
+	}
+
+	/**
+	 * Vectors around random cluster centres, like the topical clusters of document vectors, which
+	 * is harder for a greedy graph search than uniformly spread vectors.
+	 */
+	private static Map<String,float[]> clusteredVectors(Random random, int count, int clusters) {
+		float[][] centres = new float[clusters][DIMENSION];
+		for (float[] centre: centres) {
+			for (int i=0; i<DIMENSION; i++) {
+				centre[i] = (float) random.nextGaussian();
+			}
+		}
+		Map<String,float[]> clusteredVectors = new HashMap<String,float[]>();
+		for (int v=0; v<count; v++) {
+			float[] centre = centres[random.nextInt(clusters)];
+			float[] vector = new float[DIMENSION];
+			for (int i=0; i<DIMENSION; i++) {
+				vector[i] = centre[i] + 0.4f * (float) random.nextGaussian();
+			}
+			clusteredVectors.put(String.format("odp%d", v), vector);
+		}
+		return clusteredVectors;
+	}
+
+	/**
+	 * A query near a random document, as queries are near the documents they are looking for.
+	 * Not normalized, which the graph search does itself; the exact search is unaffected by scale.
+	 */
+	private static float[] nearbyQuery(Random random) {
+		float[] query = matrix.getVector(random.nextInt(matrix.size()));
+		for (int i=0; i<DIMENSION; i++) {
+			query[i] += 0.1f * (float) random.nextGaussian();
+		}
+		return query;
+	}
+
+	private static Set<Integer> rowSet(int[] rows) {
+		Set<Integer> rowSet = new HashSet<Integer>();
+		for (int row: rows) {
+			rowSet.add(row);
+		}
+		return rowSet;
+	}
+}
@@ -0,0 +1,170 @@
+package com.karlhammar.xdpservices.search;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.karlhammar.xdpservices.data.CodpDetails;
+import com.karlhammar.xdpservices.data.OdpSearchResult;
+
+public class ResultFusionTest {
+
+	private static final double[] WEIGHTS = {0.7, 1.3};
+
+	@Test
+	public void sumMatchesMergeOfNormalizedEngineResults() {
+		Random random = new Random(1);
+		ResultFusion fusion = new ResultFusion(ResultFusion.Strategy.SUM, WEIGHTS, 60);
+		for (int trial=0; trial<200; trial++) {
+			List<List<OdpSearchResult>> resultLists = randomResultLists(random);
+			List<OdpSearchResult> expected = mergeAndSort(resultLists);
+			List<OdpSearchResult> fused = fusion.fuse(resultLists, expected.size());
+			assertEquals(expected.size(), fused.size());
+			for (int i=0; i<expected.size(); i++) {
+				assertEquals(expected.get(i).getConfidence(), fused.get(i).getConfidence(), 1e-9);
+			}
+		}
+	}
+
+	@Test
+	public void heapSelectionMatchesFullSort() {
+		Random random = new Random(2);
+		for (ResultFusion.Strategy strategy: ResultFusion.Strategy.values()) {
+			ResultFusion fusion = new ResultFusion(strategy, WEIGHTS, 60);
+			for (int trial=0; trial<200; trial++) {
+				List<List<OdpSearchResult>> resultLists = randomResultLists(random);
+				List<String> expected = sortedIris(resultLists, strategy);
+				int numResults = random.nextInt(expected.size() + 2);
+				List<OdpSearchResult> fused = fusion.fuse(resultLists, numResults);
+				assertEquals(Math.min(numResults, expected.size()), fused.size());
+				for (int i=0; i<fused.size(); i++) {
+					assertEquals(String.format("%s, rank %d", strategy, i), expected.get(i), fused.get(i).getOdp().getIri());
+				}
+			}
+		}
+	}
+
+	@Test
+	public void tiesAreBrokenByFirstAppearance() {
+		List<List<OdpSearchResult>> resultLists = new ArrayList<List<OdpSearchResult>>();
+		resultLists.add(Arrays.asList(result("a", 2.0), result("b", 1.0)));
+		resultLists.add(Arrays.asList(result("c", 4.0), result("d", 2.0)));
+		List<OdpSearchResult> fused = new ResultFusion(ResultFusion.Strategy.SUM, WEIGHTS, 60).fuse(resultLists, 4);
+		assertEquals(Arrays.asList("a", "c", "b", "d"), iris(fused));
+		assertEquals(1.0, fused.get(0).getConfidence(), 0);
+		assertEquals(0.5, fused.get(3).getConfidence(), 0);
+	}
+
+	@Test
+	public void emptyResultListsGiveNoResults() {
+		List<List<OdpSearchResult>> resultLists = new ArrayList<List<OdpSearchResult>>();
+		resultLists.add(new ArrayList<OdpSearchResult>());
+		resultLists.add(new ArrayList<OdpSearchResult>());
+		assertEquals(0, new ResultFusion(ResultFusion.Strategy.RRF, WEIGHTS, 60).fuse(resultLists, 10).size());
+	}
+
+	/**
+	 * Two engine result lists, best first, over a small pool of IRIs so that they overlap, with
+	 * scores from a small set of values so that there are ties.
+	 */
+	private static List<List<OdpSearchResult>> randomResultLists(Random random) {
+		List<List<OdpSearchResult>> resultLists = new ArrayList<List<OdpSearchResult>>();
+		for (int engine=0; engine<2; engine++) {
+			List<String> iris = new ArrayList<String>();
+			for (int i=0; i<30; i++) {
+				iris.add(String.format("odp%d", i));
+			}
+			Collections.shuffle(iris, random);
+			int size = random.nextInt(20);
+			double[] scores = new double[size];
+			for (int i=0; i<size; i++) {
+				scores[i] = 1 + random.nextInt(8);
+			}
+			Arrays.sort(scores);
+			List<OdpSearchResult> results = new ArrayList<OdpSearchResult>();
+			for (int i=0; i<size; i++) {
+				results.add(result(iris.get(i), scores[size - 1 - i]));
+			}
+			resultLists.add(results);
+		}
+		return resultLists;
+	}
+
+	/**
+	 * Reference for the SUM strategy: the merge that fusion replaced. Each engine's scores are
+	 * scaled to its best score, summed per IRI, sorted, and scaled to the best sum.
+	 */
+	private static List<OdpSearchResult> mergeAndSort(List<List<OdpSearchResult>> resultLists) {
+		Map<String,Double> mergedScores = new HashMap<String,Double>();
+		for (List<OdpSearchResult> results: resultLists) {
+			for (OdpSearchResult result: results) {
+				double score = result.getConfidence() / results.get(0).getConfidence();
+				Double mergedScore = mergedScores.get(result.getOdp().getIri());
+				mergedScores.put(result.getOdp().getIri(), mergedScore == null ? score : mergedScore + score);
+			}
+		}
+		List<OdpSearchResult> merged = new ArrayList<OdpSearchResult>();
+		double bestScore = mergedScores.isEmpty() ? 1 : Collections.max(mergedScores.values());
+		for (Map.Entry<String,Double> entry: mergedScores.entrySet()) {
+			merged.add(result(entry.getKey(), entry.getValue() / bestScore));
+		}
+		Collections.sort(merged, new Comparator<OdpSearchResult>() {
+			@Override
+			public int compare(OdpSearchResult osr1, OdpSearchResult osr2) {
+				return osr2.getConfidence().compareTo(osr1.getConfidence());
+			}
+		});
+		return merged;
+	}
+
+	/**
+	 * Reference ranking of all IRIs: fused scores computed independently, fully sorted, ties
+	 * broken by first appearance (engine by engine, rank by rank).
+	 */
+	private static List<String> sortedIris(List<List<OdpSearchResult>> resultLists, ResultFusion.Strategy strategy) {
+		final Map<String,Double> scores = new LinkedHashMap<String,Double>();
+		for (int engine=0; engine<resultLists.size(); engine++) {
+			List<OdpSearchResult> results = resultLists.get(engine);
+			double weight = strategy == ResultFusion.Strategy.SUM ? 1 : WEIGHTS[engine];
+			for (int rank=0; rank<results.size(); rank++) {
+				OdpSearchResult result = results.get(rank);
+				double contribution = strategy == ResultFusion.Strategy.RRF ? weight / (60 + rank + 1)
+						: weight * result.getConfidence() / results.get(0).getConfidence();
+				Double score = scores.get(result.getOdp().getIri());
+				scores.put(result.getOdp().getIri(), score == null ? contribution : score + contribution);
+			}
+		}
+		final List<String> firstAppearance = new ArrayList<String>(scores.keySet());
+		List<String> iris = new ArrayList<String>(firstAppearance);
+		Collections.sort(iris, new Comparator<String>() {
+			@Override
+			public int compare(String iri1, String iri2) {
+				int byScore = Double.compare(scores.get(iri2), scores.get(iri1));
+				return byScore != 0 ? byScore : Integer.compare(firstAppearance.indexOf(iri1), firstAppearance.indexOf(iri2));
+			}
+		});
+		return iris;
+	}
+
+	private static OdpSearchResult result(String iri, double confidence) {
+		return new OdpSearchResult(new CodpDetails(iri, null), confidence);
+	}
+
+	private static List<String> iris(List<OdpSearchResult> results) {
+		List<String> iris = new ArrayList<String>();
+		for (OdpSearchResult result: results) {
+			iris.add(result.getOdp().getIri());
+		}
+		return iris;
+	}
+}